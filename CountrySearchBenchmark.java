@@ -0,0 +1,120 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+
+// Micro-benchmarks for the search, render, serialize and load paths of CountrySearchServer.
+// Runs against a SyntheticFactbook CSV, so the real countries.csv isn't needed.
+//
+//   javac -encoding UTF-8 CountrySearchServer.java SyntheticFactbook.java CountrySearchBenchmark.java
+//   java CountrySearchBenchmark [name filter] [rows]
+//
+// Each case gets a warmup and then several timed iterations (-Dbench.warmup / -Dbench.time in ms,
+// -Dbench.iterations). The report has throughput, mean/p50/p99 latency per op and bytes allocated
+// per op on the benchmark thread.
+public class CountrySearchBenchmark {
+
+    // Results go here so the JIT can't drop the work
+    static volatile Object sink;
+
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 260;
+        long warmupMs = Long.getLong("bench.warmup", 1000);
+        long measureMs = Long.getLong("bench.time", 1000);
+        int iterations = Integer.getInteger("bench.iterations", 5);
+
+        Path dir = Files.createTempDirectory("natlas-bench");
+        Path csv = dir.resolve("countries.csv");
+        Path snapshot = dir.resolve("countries.csv.snapshot");
+        SyntheticFactbook.write(csv, rows, 300, 42);
+        CountrySearchServer.TableSnapshot.Key key = CountrySearchServer.TableSnapshot.Key.of(csv);
+        CountrySearchServer.DataSnapshot data = CountrySearchServer.loadCSV(csv, key);
+
+        List<CountrySearchServer.Row> single = data.search("Germany");
+        List<CountrySearchServer.Row> ten = data.search("a").subList(0, 10);
+        List<CountrySearchServer.Row> broad = data.search("a");
+        String overview = single.get(0).getOrDefault("Economy: Economic overview", "");
+        CountrySearchServer.DetailPage germany = data.detailPage(data.index.search("Germany")[0]);
+        CountrySearchServer.PageBuffer page = new CountrySearchServer.PageBuffer(65536);
+        CountrySearchServer.NumericColumns.Query topK = CountrySearchServer.NumericColumns.Query.parse("population>1000000", "-gdp_per_capita", 0, 10);
+
+        Map<String, Op> cases = new LinkedHashMap<>();
+        cases.put("search.exact", () -> data.index.search("Germany"));
+        cases.put("search.partial", () -> data.index.search("united"));
+        cases.put("search.miss", () -> data.index.search("zzqxv"));
+        cases.put("search.broad", () -> data.index.search("a"));
+        cases.put("suggest.prefix", () -> data.suggestions.suggest("un", 10));
+        cases.put("search.fuzzy", () -> data.index.fuzzy("phillipines"));
+        cases.put("query.topK", () -> data.numbers.run(topK, new int[1]));
+        cases.put("render.single", () -> CountrySearchServer.renderResultsPage("Germany", single));
+        cases.put("render.multi", () -> CountrySearchServer.renderResultsPage("a", broad));
+        // The cached page served under a different alias than the one it was rendered for
+        cases.put("render.aliasPage", () -> germany.forQuery("germany"));
+        cases.put("json.1", () -> writeJson(single));
+        cases.put("json.10", () -> writeJson(ten));
+        cases.put("json.broad", () -> writeJson(broad));
+        cases.put("escapeHtml.overview", () -> CountrySearchServer.escapeHtml(overview));
+        cases.put("escapeHtml.plain", () -> CountrySearchServer.escapeHtml("Federal Republic of Germany"));
+        cases.put("escapeHtml.page", () -> { page.reset(); page.escaped(overview); return page; });
+        cases.put("load.parseCSV", () -> CountrySearchServer.parseCSV(csv));
+        cases.put("load.snapshot", () -> CountrySearchServer.TableSnapshot.read(snapshot, key));
+
+        System.out.println("Synthetic factbook: " + rows + " rows, " + Files.size(csv) / 1024 + " KB; broad query matches " + broad.size());
+        System.out.printf("%-22s %14s %12s %12s %12s %14s%n", "Benchmark", "ops/s", "mean ns", "p50 ns", "p99 ns", "alloc B/op");
+        for (Map.Entry<String, Op> entry : cases.entrySet()) {
+            if (!entry.getKey().contains(filter)) continue;
+            run(entry.getKey(), entry.getValue(), warmupMs, measureMs, iterations);
+        }
+
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(csv);
+        Files.deleteIfExists(dir);
+    }
+
+    private static Object writeJson(List<CountrySearchServer.Row> rows) throws IOException {
+        try (CountrySearchServer.JsonWriter json = new CountrySearchServer.JsonWriter(OutputStream.nullOutputStream())) {
+            CountrySearchServer.writeResultsJSON(json, rows, null, null);
+        }
+        return rows;
+    }
+
+    private static void run(String name, Op op, long warmupMs, long measureMs, int iterations) throws Exception {
+        long end = System.nanoTime() + warmupMs * 1_000_000;
+        while (System.nanoTime() < end) sink = op.run();
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        // Preallocated so recording samples doesn't show up as allocation
+        long[] samples = new long[1 << 21];
+        int sampleCount = 0;
+        long ops = 0;
+        long totalNanos = 0;
+        long allocated = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            long allocBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long stop = start + measureMs * 1_000_000;
+            long now = start;
+            while (now < stop) {
+                long t0 = now;
+                sink = op.run();
+                now = System.nanoTime();
+                if (sampleCount < samples.length) samples[sampleCount++] = now - t0;
+                ops++;
+            }
+            totalNanos += now - start;
+            allocated += threads.getThreadAllocatedBytes(threadId) - allocBefore;
+        }
+
+        Arrays.sort(samples, 0, sampleCount);
+        double opsPerSecond = ops * 1e9 / totalNanos;
+        System.out.printf("%-22s %14.0f %12.0f %12d %12d %14d%n", name, opsPerSecond, (double) totalNanos / ops,
+            samples[(int) (sampleCount * 0.50)], samples[Math.min(sampleCount - 1, (int) (sampleCount * 0.99))], allocated / ops);
+    }
+}
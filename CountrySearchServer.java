@@ -8,8 +8,15 @@ import java.util.*;
 
 public class CountrySearchServer {
 
-    private static List<String> headers = new ArrayList<>();
-    private static List<Map<String, String>> countries = new ArrayList<>();
+    // Set once the first real snapshot is in place; until then data is the empty placeholder below
+    private static volatile boolean ready;
+    // Shared by every data route; null when rate limiting is off
+    private static RateLimitFilter rateLimiter;
+    // Budget for each snapshot's ResultCache (RESULT_CACHE_MB)
+    private static long resultCacheBytes = 16L << 20;
+    // Swapped as a whole on reload; a request reads it once and keeps that snapshot to the end
+    private static volatile DataSnapshot data = new DataSnapshot(new CountryTable.Builder(new String[0]).build(), null);
+    private static String csvPath = "countries.csv";
     
     private static final String CSP = "script-src 'self' 'unsafe-inline' https://static.cloudflareinsights.com";
     
@@ -53,656 +60,3575 @@ public class CountrySearchServer {
     }
 
     public static void main(String[] args) throws Exception {
-        // Load CSV data
-        System.out.println("Loading countries.csv...");
-        loadCSV("countries.csv");
-        System.out.println("Loaded " + countries.size() + " countries.");
+        Log.start(envOrDefault("LOG_LEVEL", "INFO"), Integer.parseInt(envOrDefault("LOG_SAMPLE", "1")));
 
         // Railway sets a PORT environment variable - always use it
         String portEnv = System.getenv("PORT");
         int port = (portEnv != null) ? Integer.parseInt(portEnv) : 8080;
 
-        HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", port), 0);
+        // How requests are run: "pool" (default), "virtual" (JDK 21+) or "direct" (the old single dispatcher thread)
+        String executorMode = envOrDefault("HTTP_EXECUTOR", "pool");
+        int threads = Integer.parseInt(envOrDefault("HTTP_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors() * 2)));
+        int queueDepth = Integer.parseInt(envOrDefault("HTTP_QUEUE_DEPTH", "256"));
+
+        // Per-client token buckets: RATE_LIMIT_RPS tokens a second up to RATE_LIMIT_BURST, 0 turns it off.
+        // X-Forwarded-For is only believed with RATE_LIMIT_TRUST_PROXY=true, and then only from the peers
+        // in RATE_LIMIT_TRUSTED_PROXIES when that list is set; otherwise any client could pick its own bucket.
+        double rate = Double.parseDouble(envOrDefault("RATE_LIMIT_RPS", "20"));
+        if (rate > 0) {
+            Set<String> trustedProxies = new HashSet<>();
+            for (String proxy : envOrDefault("RATE_LIMIT_TRUSTED_PROXIES", "").split(",")) {
+                if (!proxy.isBlank()) trustedProxies.add(InetAddress.getByName(proxy.trim()).getHostAddress());
+            }
+            rateLimiter = new RateLimitFilter(rate, Double.parseDouble(envOrDefault("RATE_LIMIT_BURST", "40")),
+                Integer.parseInt(envOrDefault("RATE_LIMIT_MAX_CLIENTS", "10000")),
+                envOrDefault("RATE_LIMIT_TRUST_PROXY", "false").equals("true"), trustedProxies);
+        }
+
+        // Connection handling. The JDK server reads these properties once, so they must be set before create()
+        int backlog = Integer.parseInt(envOrDefault("HTTP_BACKLOG", "256"));
+        httpProperty("sun.net.httpserver.idleInterval", "HTTP_IDLE_TIMEOUT");
+        httpProperty("sun.net.httpserver.maxIdleConnections", "HTTP_MAX_IDLE_CONNECTIONS");
+        httpProperty("jdk.httpserver.maxConnections", "HTTP_MAX_CONNECTIONS");
+        // A client that trickles its request line or headers holds a worker until this many seconds pass
+        System.setProperty("sun.net.httpserver.maxReqTime", envOrDefault("HTTP_MAX_REQUEST_TIME", "10"));
+        httpProperty("sun.net.httpserver.maxRspTime", "HTTP_MAX_RESPONSE_TIME");
+        // Small responses on a kept-alive connection shouldn't wait on Nagle
+        System.setProperty("sun.net.httpserver.nodelay", envOrDefault("HTTP_NODELAY", "true"));
+        // Like the JDK, treat a missing, unreadable or non-positive idle timeout as its 30 s default
+        long idleSeconds = Long.getLong("sun.net.httpserver.idleInterval", 30);
+        ConnectionStats.idleNanos = (idleSeconds > 0 ? idleSeconds : 30) * 1_000_000_000L;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", port), backlog);
         
-        server.createContext("/", new HomeHandler());
-        server.createContext("/search", new SearchHandler());
-        server.createContext("/api/search", new APISearchHandler());
+        register(server, "/", new HomeHandler(), true);
+        register(server, "/search", new SearchHandler(), true);
+        register(server, "/api/search", new APISearchHandler(), true);
+        register(server, "/api/suggest", new SuggestHandler(), true);
+        register(server, "/api/batch", new BatchHandler(), true);
+        register(server, "/api/query", new QueryHandler(), true);
+        register(server, "/admin/reload", new ReloadHandler(System.getenv("ADMIN_TOKEN")), false);
+        register(server, "/static/", new StaticHandler(), false);
+        register(server, "/favicon.gif", new StaticHandler(), false);
+        registerProbe(server, "/healthz", new ProbeHandler(false));
+        registerProbe(server, "/readyz", new ProbeHandler(true));
+        // Scrapes matter most while the server is overloaded, so metrics bypass shedding like the probes
+        registerProbe(server, "/metrics", new MetricsHandler());
         
-        server.setExecutor(null);
+        server.setExecutor(createExecutor(executorMode, threads, queueDepth));
+        // Bind before loading so probes get an answer during warmup; data routes say 503 until ready
         server.start();
+        Log.info("Listening on port " + port + ", warming up...");
+
+        // Load CSV data
+        csvPath = envOrDefault("CSV_PATH", "countries.csv");
+        resultCacheBytes = Long.parseLong(envOrDefault("RESULT_CACHE_MB", "16")) << 20;
+        Log.info("Loading " + csvPath + "...");
+        try {
+            data = loadCSV(Path.of(csvPath), TableSnapshot.Key.of(Path.of(csvPath)));
+        } catch (Exception e) {
+            // The HTTP threads would keep a half-started server alive forever, so exit and let the platform restart us
+            Log.error("Could not load " + csvPath + ": " + e);
+            System.exit(1);
+        }
+        ready = true;
+        Log.info("Loaded " + data.countries.size() + " countries.");
+        if (envOrDefault("CSV_WATCH", "false").equals("true")) watchCSV(Path.of(csvPath));
         
-        System.out.println("==========================================");
-        System.out.println("  Server is LIVE on port " + port + "!");
-        System.out.println("==========================================");
+        Log.info("==========================================");
+        Log.info("  Server is LIVE on port " + port + "!");
+        Log.info("  Executor: " + executorMode + " (threads " + threads + ", queue " + queueDepth + ")");
+        Log.info("  Connections: backlog " + backlog + ", idle timeout " + System.getProperty("sun.net.httpserver.idleInterval", "30") + "s"
+            + ", max idle " + System.getProperty("sun.net.httpserver.maxIdleConnections", "default")
+            + ", max " + System.getProperty("jdk.httpserver.maxConnections", "unlimited")
+            + ", request timeout " + System.getProperty("sun.net.httpserver.maxReqTime") + "s");
+        Log.info("==========================================");
     }
 
-    static class HomeHandler implements HttpHandler {
-        public void handle(HttpExchange exchange) throws IOException {
-            String html = getHomePage();
-            byte[] bytes = html.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-            // Updated this to fix some crud
-            exchange.getResponseHeaders().set("Content-Security-Policy", CSP);
-            exchange.sendResponseHeaders(200, bytes.length);
+    private static String envOrDefault(String name, String fallback) {
+        String value = System.getenv(name);
+        return (value != null && !value.isBlank()) ? value.trim() : fallback;
+    }
+
+    // Copies an env var into a JDK HttpServer property, leaving the JDK default when it's unset
+    private static void httpProperty(String property, String env) {
+        String value = envOrDefault(env, null);
+        if (value != null) System.setProperty(property, value);
+    }
+
+    // Every context goes through the same filters; ones that read the data are also rate limited and wait for it to load
+    private static HttpContext register(HttpServer server, String path, HttpHandler handler, boolean needsData) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(new MetricsFilter(Metrics.handler(path)));
+        context.getFilters().add(new OverloadFilter());
+        if (needsData && rateLimiter != null) context.getFilters().add(rateLimiter);
+        if (needsData) context.getFilters().add(new WarmupFilter());
+        return context;
+    }
+
+    // Probes (and metrics) are counted but never shed, so a busy instance still reports itself alive
+    private static HttpContext registerProbe(HttpServer server, String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(new MetricsFilter(Metrics.handler(path)));
+        return context;
+    }
+
+    private static java.util.concurrent.Executor createExecutor(String mode, int threads, int queueDepth) {
+        switch (mode) {
+            case "direct":
+                return null;
+            case "virtual":
+                try {
+                    java.util.concurrent.Executor virtual = (java.util.concurrent.Executor)
+                        java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    return new BoundedExecutor(virtual, threads + queueDepth);
+                } catch (ReflectiveOperationException e) {
+                    Log.warn("Virtual threads need JDK 21+, falling back to a thread pool.");
+                    return createPool(threads, queueDepth);
+                }
+            case "pool":
+                return createPool(threads, queueDepth);
+            default:
+                throw new IllegalArgumentException("Unknown HTTP_EXECUTOR: " + mode);
+        }
+    }
+
+    private static java.util.concurrent.Executor createPool(int threads, int queueDepth) {
+        java.util.concurrent.ThreadPoolExecutor pool = new java.util.concurrent.ThreadPoolExecutor(
+            threads, threads, 60, java.util.concurrent.TimeUnit.SECONDS,
+            queueDepth > 0 ? new java.util.concurrent.ArrayBlockingQueue<>(queueDepth) : new java.util.concurrent.SynchronousQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "http-worker");
+                thread.setDaemon(true);
+                return thread;
+            },
+            (task, executor) -> OverloadFilter.shed(task));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Caps how many requests can be in flight on an unbounded executor (virtual threads)
+    static class BoundedExecutor implements java.util.concurrent.Executor {
+        private final java.util.concurrent.Executor delegate;
+        private final java.util.concurrent.Semaphore permits;
+
+        BoundedExecutor(java.util.concurrent.Executor delegate, int maxInFlight) {
+            this.delegate = delegate;
+            this.permits = new java.util.concurrent.Semaphore(maxInFlight);
+        }
+
+        public void execute(Runnable task) {
+            if (!permits.tryAcquire()) {
+                OverloadFilter.shed(task);
+                return;
+            }
+            try {
+                delegate.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+    }
+
+    // When the executor is full the exchange is handed to a single shedding thread with a flag set,
+    // and this filter answers 503 before any handler work happens. Reading the request can block on a
+    // slow client, so this never runs on the dispatcher thread. If the shedding queue is full too, the
+    // rejection goes back to the JDK, which closes the connection.
+    static class OverloadFilter extends Filter {
+        private static final ThreadLocal<Boolean> SHEDDING = ThreadLocal.withInitial(() -> false);
+        private static final byte[] BUSY = "Server is busy, please retry shortly.".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        private static final java.util.concurrent.ThreadPoolExecutor SHEDDER = new java.util.concurrent.ThreadPoolExecutor(
+            1, 1, 0, java.util.concurrent.TimeUnit.SECONDS, new java.util.concurrent.ArrayBlockingQueue<>(64),
+            runnable -> {
+                Thread thread = new Thread(runnable, "http-shed");
+                thread.setDaemon(true);
+                return thread;
+            });
+        static final java.util.concurrent.atomic.AtomicLong rejected = new java.util.concurrent.atomic.AtomicLong();
+
+        // Throws RejectedExecutionException when even the shedding queue is full
+        static void shed(Runnable task) {
+            SHEDDER.execute(() -> runShedding(task));
+        }
+
+        private static void runShedding(Runnable task) {
+            SHEDDING.set(true);
+            try {
+                task.run();
+            } finally {
+                SHEDDING.set(false);
+            }
+        }
+
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!SHEDDING.get()) {
+                chain.doFilter(exchange);
+                return;
+            }
+            // Counted here rather than when shedding, since idle keep-alive connections are dispatched too
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(503, BUSY.length);
             OutputStream os = exchange.getResponseBody();
-            os.write(bytes);
+            os.write(BUSY);
             os.close();
         }
+
+        public String description() {
+            return "Answers 503 when the executor is saturated";
+        }
     }
 
-    static class SearchHandler implements HttpHandler {
-        public void handle(HttpExchange exchange) throws IOException {
-            String query = "";
-            if (exchange.getRequestURI().getQuery() != null) {
-                String[] params = exchange.getRequestURI().getQuery().split("&");
-                for (String param : params) {
-                    String[] kv = param.split("=");
-                    if (kv[0].equals("q")) {
-                    query = URLDecoder.decode(kv[1], "UTF-8");
-                    }    
+    // Token bucket per client address. Each request costs tokens up front: broad searches, which
+    // serialize far more rows, cost more than a normal lookup, and batches are charged again by name
+    // count once the handler has parsed them. No cost is ever more than the burst, so every request
+    // can eventually pass. An empty bucket gets a 429 with Retry-After for when enough tokens will be
+    // back. Buckets that have been idle long enough to be full again are dropped by a sweeper, and the
+    // map never grows past maxClients; beyond that, unknown clients are spread over a fixed set of
+    // overflow buckets by address, so one abuser only drains its own share.
+    static class RateLimitFilter extends Filter {
+        static final java.util.concurrent.atomic.LongAdder limited = new java.util.concurrent.atomic.LongAdder();
+        private static final int OVERFLOW_BUCKETS = 64;
+        private static final int BROAD_COST = 5;
+        // One extra token for every this many names in a batch
+        private static final int NAMES_PER_TOKEN = 10;
+        private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+        private static final byte[] TOO_MANY = "Too many requests, please slow down.".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+
+        private final double rate;
+        private final double burst;
+        private final int maxClients;
+        private final boolean trustProxy;
+        private final Set<String> trustedProxies;
+        private final long idleNanos;
+        private final java.util.concurrent.ConcurrentHashMap<String, Bucket> buckets = new java.util.concurrent.ConcurrentHashMap<>();
+        private final java.util.concurrent.atomic.AtomicLong lastSweep = new java.util.concurrent.atomic.AtomicLong(System.nanoTime());
+
+        private static class Bucket {
+            double tokens;
+            long updated;
+
+            Bucket(double tokens, long updated) {
+                this.tokens = tokens;
+                this.updated = updated;
+            }
+        }
+
+        RateLimitFilter(double rate, double burst, int maxClients, boolean trustProxy, Set<String> trustedProxies) {
+            if (burst < 1) {
+                Log.warn("RATE_LIMIT_BURST " + burst + " can't pay for a single request, using 1");
+                burst = 1;
+            }
+            this.rate = rate;
+            this.burst = burst;
+            this.maxClients = maxClients;
+            this.trustProxy = trustProxy;
+            this.trustedProxies = trustedProxies;
+            // Twice the time to refill from empty, after which a bucket is no different from a new one
+            this.idleNanos = (long) (2e9 * burst / rate);
+            Thread sweeper = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(1000, idleNanos / 1_000_000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sweep(System.nanoTime());
+                }
+            }, "rate-limit-sweeper");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        }
+
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (charge(exchange, cost(exchange))) chain.doFilter(exchange);
+        }
+
+        public String description() {
+            return "Answers 429 when a client runs out of tokens";
+        }
+
+        // Takes cost tokens from the client's bucket, or answers 429 and returns false
+        boolean charge(HttpExchange exchange, int cost) throws IOException {
+            double wait = take(client(exchange), Math.min(cost, (int) burst), System.nanoTime());
+            if (wait <= 0) return true;
+            limited.increment();
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf((long) Math.ceil(wait)));
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(429, TOO_MANY.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(TOO_MANY);
+            os.close();
+            return false;
+        }
+
+        // What a batch of this many names costs on top of the request itself, which was already charged
+        int batchCost(int names) {
+            return Math.min(names / NAMES_PER_TOKEN, (int) burst - 1);
+        }
+
+        // Seconds until the bucket could pay for this request, or 0 if it just did
+        double take(String client, int cost, long now) {
+            if (cost <= 0) return 0;
+            Bucket bucket = buckets.get(client);
+            if (bucket == null) {
+                // A full map means a sweep, but at most one a second however many new clients turn up
+                if (buckets.size() >= maxClients) {
+                    long last = lastSweep.get();
+                    if (now - last > SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, now)) sweep(now);
                 }
+                if (buckets.size() >= maxClients) client = "*" + Math.floorMod(client.hashCode(), OVERFLOW_BUCKETS);
+                bucket = buckets.computeIfAbsent(client, k -> new Bucket(burst, now));
             }
-            exchange.getResponseHeaders().set("Content-Security-Policy", CSP);
-            String html = getSearchResultsPage(query);
-            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
-            byte[] bytes = html.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-            exchange.sendResponseHeaders(200, bytes.length);
+            synchronized (bucket) {
+                bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * rate / 1e9);
+                bucket.updated = now;
+                if (bucket.tokens >= cost) {
+                    bucket.tokens -= cost;
+                    return 0;
+                }
+                return (cost - bucket.tokens) / rate;
+            }
+        }
+
+        private void sweep(long now) {
+            buckets.entrySet().removeIf(entry -> {
+                synchronized (entry.getValue()) {
+                    return now - entry.getValue().updated > idleNanos;
+                }
+            });
+        }
+
+        private static int cost(HttpExchange exchange) {
+            String path = exchange.getHttpContext().getPath();
+            if (!path.equals("/search") && !path.equals("/api/search")) return 1;
+            Map<String, String> params = queryParams(exchange);
+            // Short queries match most of the table
+            if (params.getOrDefault("q", "").trim().length() < 3 || "true".equals(params.get("fuzzy")) || "1".equals(params.get("fuzzy"))) return BROAD_COST;
+            return 1;
+        }
+
+        // Behind a trusted proxy the peer is the proxy; the client is the last X-Forwarded-For hop it added
+        private String client(HttpExchange exchange) {
+            String peer = exchange.getRemoteAddress().getAddress().getHostAddress();
+            if (trustProxy && (trustedProxies.isEmpty() || trustedProxies.contains(peer))) {
+                String forwarded = exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+                if (forwarded != null && !forwarded.isBlank()) {
+                    int comma = forwarded.lastIndexOf(',');
+                    return forwarded.substring(comma + 1).trim();
+                }
+            }
+            return peer;
+        }
+    }
+
+    static class WarmupFilter extends Filter {
+        private static final byte[] STARTING = "Server is starting, please retry shortly.".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (ready) {
+                chain.doFilter(exchange);
+                return;
+            }
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(503, STARTING.length);
             OutputStream os = exchange.getResponseBody();
-            os.write(bytes);
+            os.write(STARTING);
             os.close();
         }
+
+        public String description() {
+            return "Answers 503 until the first data snapshot is loaded";
+        }
     }
 
-    static class APISearchHandler implements HttpHandler {
+    // /healthz says the process is up, /readyz says the data and indexes are built.
+    // Both answer with constant bytes so probes cost next to nothing.
+    static class ProbeHandler implements HttpHandler {
+        private static final byte[] OK = "ok\n".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        private static final byte[] STARTING = "starting\n".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+
+        private final boolean readiness;
+
+        ProbeHandler(boolean readiness) {
+            this.readiness = readiness;
+        }
+
         public void handle(HttpExchange exchange) throws IOException {
-            String query = "";
-            if (exchange.getRequestURI().getQuery() != null) {
-                String[] params = exchange.getRequestURI().getQuery().split("&");
-                for (String param : params) {
-                    String[] kv = param.split("=");
-                    if (kv[0].equals("q")) {
-                        query = URLDecoder.decode(kv[1], "UTF-8");
-                    }
-                }
+            boolean ok = !readiness || ready;
+            byte[] body = ok ? OK : STARTING;
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(ok ? 200 : 503, -1);
+                exchange.close();
+                return;
             }
-    
-            List<Map<String, String>> results = searchCountry(query);
-            String json = resultsToJSON(results);
-            exchange.getResponseHeaders().set("Content-Security-Policy", CSP);
-            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
-            byte[] bytes = json.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.sendResponseHeaders(ok ? 200 : 503, body.length);
             OutputStream os = exchange.getResponseBody();
-            os.write(bytes);
+            os.write(body);
             os.close();
         }
     }
 
-    // The actual HTML Page
-    private static String getHomePage() {
-        return "<!DOCTYPE html>\n" +
-            "<html lang='en'>\n" +
-            "<head>\n" +
-            "    <meta charset='UTF-8'>\n" +
-            "    <meta name='viewport' content='width=device-width, initial-scale=1.0'>\n" +
-            "    <title>Natlas</title>\n" +
-            "    <style>\n" +
-            "        * { margin: 0; padding: 0; box-sizing: border-box; }\n" +
-            "        body {\n" +
-            "            font-family: ui-serif, 'Charter', 'Bitstream Charter', Georgia, Cambria, 'Times New Roman', Times, serif;\n" +
-            "            background: linear-gradient(450deg, #1e1e1e 35%, #ababab 100%);\n" +
-            "            min-height: 100vh;\n" +
-            "            display: flex;\n" +
-            "            align-items: center;\n" +
-            "            justify-content: center;\n" +
-            "            padding: 15px;\n" +
-            "        }\n" +
-            "        .container {\n" +
-            "            background: white;\n" +
-            "            border-radius: 12px;\n" +
-            "            box-shadow: 0 20px 60px rgba(0,0,0,0.3);\n" +
-            "            padding: 60px 40px;\n" +
-            "            max-width: 600px;\n" +
-            "            width: 100%;\n" +
-            "            text-align: center;\n" +
-            "        }\n" +
-            "        h1 {\n" +
-            "            color: #000000;\n" +
-            "            font-size: 2.5em;\n" +
-            "            margin-bottom: 10px;\n" +
-            "        }\n" +
-            "        .subtitle {\n" +
-            "            color: #949494;\n" +
-            "            font-size: 1.1em;\n" +
-            "            margin-bottom: 40px;\n" +
-            "        }\n" +
-            "        .search-box {\n" +
-            "            position: relative;\n" +
-            "            margin-bottom: 25px;\n" +
-            "        }\n" +
-            "        input[type='text'] {\n" +
-            "            width: 100%;\n" +
-            "            padding: 18px 24px;\n" +
-            "            font-size: 1.1em;\n" +
-            "            border: 2px solid #e2e8f0;\n" +
-            "            border-radius: 12px;\n" +
-            "            outline: none;\n" +
-            "            margin-bottom: 20px;\n" +
-            "            transition: all 0.3s;\n" +
-            "        }\n" +
-            "        input[type='text']:focus {\n" +
-            "            border-color: #a3a3a3;\n" +
-            "            margin-top: 30px;\n" +
-            "            box-shadow: 0 0 0 3px rgba(230, 230, 230, 0.1);\n" +
-            "        }\n" +
-            "        button {\n" +
-            "            width: 100%;\n" +
-            "            padding: 18px;\n" +
-            "            font-size: 1.1em;\n" +
-            "            font-weight: 600;\n" +
-            "            color: white;\n" +
-            "            background: linear-gradient(135deg, #1e1e1e 0%, #ababab 100%);\n" +
-            "            border: none;\n" +
-            "            border-radius: 12px;\n" +
-            "            cursor: pointer;\n" +
-            "            transition: transform 0.2s, box-shadow 0.2s;\n" +
-            "        }\n" +
-            "        button:hover {\n" +
-            "            transform: translateY(-2px);\n" +
-            "            box-shadow: 0 10px 20px rgba(123, 123, 123, 0.3);\n" +
-            "        }\n" +
-            "        button:active {\n" +
-            "            transform: translateY(0);\n" +
-            "        }\n" +
-            "        .globe {\n" +
-            "            font-size: 4em;\n" +
-            "            margin-bottom: 20px;\n" +
-            "            animation: float 4s ease-in-out infinite;\n" +
-            "        }\n" +
-            "        @keyframes float {\n" +
-            "            0%, 100% { transform: translateY(0px); }\n" +
-            "            50% { transform: translateY(-20px); }\n" +
-            "        }\n" +
-            "        .info {\n" +
-            "            color: #949494;\n" +
-            "            font-size: 0.95em;\n" +
-            "        }\n" +
-            "        .claus {\n" +
-            "            color: #000000;\n" +
-            "            font-size: 0.60em;\n" +
-            "        }\n" +  
-            "    </style>\n" +
-            "</head>\n" +
-            "<body>\n" +
-            "    <div class='container'>\n" +
-            "        <div class='globe'>?</div>\n" +
-            "        <h1>National Atlas</h1>\n" +
-            "        <p class='subtitle'>Explore detailed information about any country, region, or territory, from Italy to Canada; Using backed information from the CIA.</p>\n" +
-            "        <form action='/search' method='GET' class='search-box'>\n\n" +
-            "            <input type='text' name='q' placeholder='Enter country name...' required autofocus>\n" +
-            "            <button type='submit'>Search</button>\n" +
-            "        </form>\n" +
-            "        <p class='info'>Try searching: United States, Germany, Japan, Brazil; Or use abreviation like, ger, united, or braz.</p>\n" +
-            "        <p class='info' style='margin-top: 10px;'>" + countries.size() + " countries, regions, or territorys current publicly loaded.</p>\n" +
-            "        <p class='claus' style='margin-top: 3px;'>All information is sourced from the Central Intelligence Agency (2024) & Gerald Bauer (Feb 25st, 2026).\nCurrent Web Version:0.0.84\nOriginal Creator - A-Palmer</p>\n" +
-            "    </div>\n" +
-            "    <script>\n" +
-            "        const canvas = document.createElement('canvas');\n" +
-            "        canvas.width = 64;\n" +
-            "        canvas.height = 64;\n" +
-            "        const ctx = canvas.getContext('2d');\n" +
-            "        const globes = ['🌍', '🌎', '🌏'];\n" +
-            "        let frame = 0;\n" +
-            "        \n" +
-            "        function updateFavicon() {\n" +
-            "            ctx.clearRect(0, 0, 64, 64);\n" +
-            "            ctx.font = '56px Arial';\n" +
-            "            ctx.textAlign = 'center';\n" +
-            "            ctx.textBaseline = 'middle';\n" +
-            "            ctx.fillText(globes[frame % globes.length], 32, 36);\n" +
-            "            \n" +
-            "            const link = document.querySelector(\"link[rel*='icon']\") || document.createElement('link');\n" +
-            "            link.type = 'image/x-icon';\n" +
-            "            link.rel = 'shortcut icon';\n" +
-            "            link.href = canvas.toDataURL();\n" +
-            "            document.getElementsByTagName('head')[0].appendChild(link);\n" +
-            "            \n" +
-            "            frame++;\n" +
-            "        }\n" +
-            "        \n" +
-            "        setInterval(updateFavicon, 500);\n" +
-            "        updateFavicon();\n" +
-            "    </script>\n" +
-            "</body>\n" +
-            "</html>";
+    // Asynchronous console logging. Callers drop an entry into a lock-free ring buffer and move on;
+    // one daemon thread formats and writes them in batches, so request threads never contend on
+    // System.out. When the buffer is full entries are dropped and counted instead of blocking.
+    static class Log {
+        enum Level { DEBUG, INFO, WARN, ERROR }
+
+        private static final int CAPACITY = 8192;
+        private static final java.util.concurrent.atomic.AtomicReferenceArray<Entry> RING = new java.util.concurrent.atomic.AtomicReferenceArray<>(CAPACITY);
+        private static final java.util.concurrent.atomic.AtomicLong TAIL = new java.util.concurrent.atomic.AtomicLong();
+        private static final java.util.concurrent.atomic.LongAdder DROPPED = new java.util.concurrent.atomic.LongAdder();
+        private static volatile long head;
+        private static volatile Level level = Level.INFO;
+        private static volatile int sampleEvery = 1;
+        private static volatile Thread drainer;
+        // Set while the drainer is parked with an empty ring, so only then do writers pay for an unpark
+        private static volatile boolean sleeping;
+
+        private static final class Entry {
+            final long time;
+            final Level level;
+            final String message;
+
+            Entry(long time, Level level, String message) {
+                this.time = time;
+                this.level = level;
+                this.message = message;
+            }
+        }
+
+        // Until start() runs, entries just queue up; they are printed once the drainer starts
+        static synchronized void start(String levelName, int sample) {
+            level = Level.valueOf(levelName.toUpperCase());
+            sampleEvery = Math.max(1, sample);
+            if (drainer != null) return;
+            drainer = new Thread(Log::drain, "log-writer");
+            drainer.setDaemon(true);
+            drainer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::flushRemaining, "log-flush"));
+        }
+
+        static boolean enabled(Level l) {
+            return l.compareTo(level) >= 0;
+        }
+
+        // Guard for hot-path diagnostics: false unless DEBUG is on, then true for 1 in LOG_SAMPLE calls
+        static boolean sampleDebug() {
+            if (level != Level.DEBUG) return false;
+            int every = sampleEvery;
+            return every == 1 || java.util.concurrent.ThreadLocalRandom.current().nextInt(every) == 0;
+        }
+
+        static long dropped() {
+            return DROPPED.sum();
+        }
+
+        static void debug(String message) {
+            log(Level.DEBUG, message);
+        }
+
+        static void info(String message) {
+            log(Level.INFO, message);
+        }
+
+        static void warn(String message) {
+            log(Level.WARN, message);
+        }
+
+        static void error(String message) {
+            log(Level.ERROR, message);
+        }
+
+        private static void log(Level l, String message) {
+            if (!enabled(l)) return;
+            long slot;
+            do {
+                slot = TAIL.get();
+                if (slot - head >= CAPACITY) {
+                    DROPPED.increment();
+                    return;
+                }
+            } while (!TAIL.compareAndSet(slot, slot + 1));
+            RING.set((int) (slot % CAPACITY), new Entry(System.currentTimeMillis(), l, message));
+            if (sleeping) {
+                Thread t = drainer;
+                if (t != null) java.util.concurrent.locks.LockSupport.unpark(t);
+            }
+        }
+
+        private static void drain() {
+            StringBuilder batch = new StringBuilder(8192);
+            while (true) {
+                if (drainTo(batch)) continue;
+                // Flag first, then check again: a writer either sees the flag and unparks us, or we see its entry.
+                // The timeout is only a backstop, so an idle server wakes about once a second.
+                sleeping = true;
+                if (head == TAIL.get()) java.util.concurrent.locks.LockSupport.parkNanos(1_000_000_000L);
+                sleeping = false;
+            }
+        }
+
+        // Writes out everything published so far; returns false if there was nothing to do
+        private static synchronized boolean drainTo(StringBuilder batch) {
+            long h = head;
+            while (h < TAIL.get()) {
+                int index = (int) (h % CAPACITY);
+                Entry entry = RING.get(index);
+                // Slot claimed but not filled in yet
+                if (entry == null) break;
+                RING.set(index, null);
+                batch.append(java.time.Instant.ofEpochMilli(entry.time)).append(' ')
+                    .append(entry.level).append(' ').append(entry.message).append('\n');
+                h++;
+                head = h;
+            }
+            if (batch.length() == 0) return false;
+            System.out.print(batch);
+            System.out.flush();
+            batch.setLength(0);
+            return true;
+        }
+
+        private static void flushRemaining() {
+            StringBuilder batch = new StringBuilder();
+            while (drainTo(batch)) {
+                // keep going until the ring is empty
+            }
+        }
     }
 
-    private static String getSearchResultsPage(String query) {
-        List<Map<String, String>> results = searchCountry(query);
-        
-        StringBuilder html = new StringBuilder();
-        html.append("<!DOCTYPE html>\n");
-        html.append("<html lang='en'>\n");
-        html.append("<head>\n");
-        html.append("    <meta charset='UTF-8'>\n");
-        html.append("    <meta name='viewport' content='width=device-width, initial-scale=1.0'>\n");
-        html.append("    <title>Natlas - ").append(escapeHtml(query)).append("</title>\n");
-        html.append("    <style>\n");
-        html.append("        * { margin: 0; padding: 0; box-sizing: border-box; }\n");
-        html.append("        body {\n");
-        html.append("            font-family: ui-serif, 'Charter', 'Bitstream Charter', Georgia, Cambria, 'Times New Roman', Times, serif;\n");
-        html.append("            background: linear-gradient(25deg, #1e1e1e 0%, #ababab 100%);\n");
-        html.append("            min-height: 100vh;\n");
-        html.append("            padding: 40px 20px;\n");
-        html.append("        }\n");
-        html.append("        .header {\n");
-        html.append("            text-align: center;\n");
-        html.append("            color: white;\n");
-        html.append("            margin-bottom: 30px;\n");
-        html.append("        }\n");
-        html.append("        h1 { font-size: 2.5em; margin-bottom: 10px; }\n");
-        html.append("        .subtitle { font-size: 1.2em; opacity: 0.9; }\n");
-        html.append("        .container {\n");
-        html.append("            max-width: 900px;\n");
-        html.append("            margin: 0 auto;\n");
-        html.append("            background: white;\n");
-        html.append("            border-radius: 20px;\n");
-        html.append("            box-shadow: 0 20px 60px rgba(0,0,0,0.3);\n");
-        html.append("            padding: 40px;\n");
-        html.append("        }\n");
-        html.append("        .country-card {\n");
-        html.append("            margin-bottom: 30px;\n");
-        html.append("        }\n");
-        html.append("        .country-name {\n");
-        html.append("            font-size: 2em;\n");
-        html.append("            color: #000000;\n");
-        html.append("            margin-bottom: 20px;\n");
-        html.append("            padding-bottom: 15px;\n");
-        html.append("            border-bottom: 3px solid #4c4c4c;\n");
-        html.append("        }\n");
-        html.append("        .toggle-container {\n");
-        html.append("            margin: 20px 0;\n");
-        html.append("            text-align: center;\n");
-        html.append("        }\n");
-        html.append("        .toggle-button {\n");
-        html.append("            display: inline-block;\n");
-        html.append("            padding: 12px 24px;\n");
-        html.append("            font-size: 1em;\n");
-        html.append("            font-weight: 600;\n");
-        html.append("            color: white;\n");
-        html.append("            background: linear-gradient(135deg, #48bb78 0%, #007e29 100%);\n");
-        html.append("            border: none;\n");
-        html.append("            border-radius: 8px;\n");
-        html.append("            cursor: pointer;\n");
-        html.append("            transition: transform 0.2s, box-shadow 0.2s;\n");
-        html.append("        }\n");
-        html.append("        .toggle-button:hover {\n");
-        html.append("            transform: translateY(-2px);\n");
-        html.append("            box-shadow: 0 8px 16px rgba(72, 187, 120, 0.3);\n");
-        html.append("        }\n");
-        html.append("        .toggle-button:active {\n");
-        html.append("            transform: translateY(0);\n");
-        html.append("        }\n");
-        html.append("        .field {\n");
-        html.append("            margin-bottom: 15px;\n");
-        html.append("            padding: 15px;\n");
-        html.append("            background: #f7fafc;\n");
-        html.append("            border-radius: 8px;\n");
-        html.append("            border-left: 4px solid #a6a6a6;\n");
-        html.append("        }\n");
-        html.append("        .field-label {\n");
-        html.append("            font-weight: 600;\n");
-        html.append("            color: #000000;\n");
-        html.append("            margin-bottom: 5px;\n");
-        html.append("            font-size: 0.9em;\n");
-        html.append("            text-transform: uppercase;\n");
-        html.append("            letter-spacing: 0.5px;\n");
-        html.append("        }\n");
-        html.append("        .field-value {\n");
-        html.append("            color: #434343;\n");
-        html.append("            font-size: 1.05em;\n");
-        html.append("            line-height: 1.6;\n");
-        html.append("        }\n");
-        html.append("        .all-data {\n");
-        html.append("            display: none;\n");
-        html.append("            margin-top: 20px;\n");
-        html.append("            padding-top: 20px;\n");
-        html.append("            border-top: 2px dashed #e1e1e1;\n");
-        html.append("        }\n");
-        html.append("        .all-data.visible {\n");
-        html.append("            display: block;\n");
-        html.append("        }\n");
-        html.append("        .all-data-header {\n");
-        html.append("            font-size: 1.3em;\n");
-        html.append("            color: #000000;\n");
-        html.append("            margin-bottom: 15px;\n");
-        html.append("            font-weight: 600;\n");
-        html.append("        }\n");
-        html.append("        .back-link {\n");
-        html.append("            display: inline-block;\n");
-        html.append("            color: white;\n");
-        html.append("            text-decoration: none;\n");
-        html.append("            font-weight: 600;\n");
-        html.append("            padding: 10px 20px;\n");
-        html.append("            background: rgba(255,255,255,0.2);\n");
-        html.append("            border-radius: 8px;\n");
-        html.append("            transition: background 0.2s;\n");
-        html.append("            margin-bottom: 20px;\n");
-        html.append("        }\n");
-        html.append("        .back-link:hover {\n");
-        html.append("            background: rgba(255,255,255,0.3);\n");
-        html.append("        }\n");
-        html.append("        .no-results {\n");
-        html.append("            text-align: center;\n");
-        html.append("            padding: 60px 20px;\n");
-        html.append("        }\n");
-        html.append("        .no-results h2 {\n");
-        html.append("            color: #404040;\n");
-        html.append("            font-size: 2em;\n");
-        html.append("            margin-bottom: 15px;\n");
-        html.append("        }\n");
-        html.append("        .no-results p {\n");
-        html.append("            color: #989898;\n");
-        html.append("            font-size: 1.1em;\n");
-        html.append("        }\n");
-        html.append("        .multiple-results {\n");
-        html.append("            padding: 20px;\n");
-        html.append("        }\n");
-        html.append("        .result-link {\n");
-        html.append("            display: block;\n");
-        html.append("            padding: 18px 24px;\n");
-        html.append("            margin-bottom: 12px;\n");
-        html.append("            background: #f7fafc;\n");
-        html.append("            color: #404040;\n");
-        html.append("            text-decoration: none;\n");
-        html.append("            border-radius: 10px;\n");
-        html.append("            border-left: 4px solid #989898;\n");
-        html.append("            font-weight: 500;\n");
-        html.append("            font-size: 1.1em;\n");
-        html.append("            transition: all 0.2s;\n");
-        html.append("        }\n");
-        html.append("        .result-link:hover {\n");
-        html.append("            background: #edf2f7;\n");
-        html.append("            transform: translateX(5px);\n");
-        html.append("        }\n");
-        html.append("        .warning {\n");
-        html.append("            color: #000000;\n");
-        html.append("            font-size: 1.05em;\n");
-        html.append("            line-height: 1.6;\n");
-        html.append("        }\n");
-        html.append("    </style>\n");
-        html.append("</head>\n");
-        html.append("<body>\n");
-        html.append("    <div class='header'>\n");
-        html.append("        <a href='/' class='back-link'>Back to Search</a>\n");
-        html.append("        <h1>Search Results</h1>\n");
-        html.append("        <p class='subtitle'>Alias Searched: \"").append(escapeHtml(query)).append("\"</p>\n");
-        html.append("    </div>\n");
-        html.append("    <div class='container'>\n");
+    // Lock-free request metrics: LongAdders and atomic arrays only, nothing on the request path takes a lock.
+    // Served by MetricsHandler in Prometheus text format.
+    static class Metrics {
+        static final Histogram SEARCH = new Histogram();
+        static final Histogram RENDER = new Histogram();
+        static final Histogram SERIALIZE = new Histogram();
+        private static final Map<String, HandlerStats> HANDLERS = new java.util.concurrent.ConcurrentHashMap<>();
 
-        // If there is no result 
-        if (results.isEmpty()) {
-            html.append("        <div class='no-results'>\n");
-            html.append("            <h2>No countries found...</h2>\n");
-            html.append("            <p>Try searching for \"United States\", \"Germany\", or \"Japan\"</p>\n");
-            html.append("        </div>\n");
-        } else if (results.size() == 1) {
-            // Single result - show full details
-            Map<String, String> country = results.get(0);
-            html.append("<div class='country-card'>\n");
-            String shortName = country.getOrDefault("Country", "Unknown");
-            String longName = country.getOrDefault("Government: Country name: conventional long form", "");
-            String displayName = shortName;
-            if (!longName.isEmpty() && !longName.equals(shortName)) {
-                //displayName = shortName + " (" + longName + ")";
-            }        
-            displayName = shortName;
-            html.append("<h2 class='country-name'>").append(escapeHtml(displayName)).append("</h2>\n");
-            
-            // Display main fields
-            for (Map.Entry<String, String> field : DISPLAY_FIELDS.entrySet()) {
-                if (field.getKey().equals("Country")) continue;
-                String value = country.getOrDefault(field.getKey(), "").trim();
-                if (!value.isEmpty() && !value.equals("none")) { 
-                    System.out.println("Data was found to be normal.");
-                    html.append("            <div class='field'>\n");
-                    html.append("                <div class='field-label'>").append(escapeHtml(field.getValue())).append("</div>\n");
-                    html.append("                <div class='field-value'>").append(escapeHtml(value)).append("</div>\n");
-                    html.append("            </div>\n");
-                }
-                else if (value.equals("none") && field.getValue().equals("Official Name"))
-                {
-                    System.out.println("Data was found to be out of place or set to none. The acutal data that is broken is in: " + field.getValue() + "( "+ value +" )"+ ". The data it was repaced with is: " + displayName);
-                    html.append("            <div class='field'>\n");
-                    html.append("                <div class='field-label'>").append(escapeHtml(field.getValue())).append("</div>\n");
-                    html.append("                <div class='field-value'>").append(escapeHtml(displayName)).append("</div>\n");
-                    html.append("            </div>\n");
+        static HandlerStats handler(String path) {
+            return HANDLERS.computeIfAbsent(path, p -> new HandlerStats());
+        }
+
+        static class HandlerStats {
+            final java.util.concurrent.atomic.LongAdder requests = new java.util.concurrent.atomic.LongAdder();
+            final java.util.concurrent.atomic.LongAdder bytes = new java.util.concurrent.atomic.LongAdder();
+            final java.util.concurrent.atomic.AtomicLongArray statuses = new java.util.concurrent.atomic.AtomicLongArray(600);
+            final Histogram latency = new Histogram();
+        }
+
+        // HDR-style log-linear histogram of nanoseconds: 16 sub-buckets per power of two (about 6% precision)
+        static class Histogram {
+            private static final int SUB_BITS = 4;
+            private static final int SUB_COUNT = 1 << SUB_BITS;
+            private final java.util.concurrent.atomic.AtomicLongArray counts = new java.util.concurrent.atomic.AtomicLongArray(64 * SUB_COUNT);
+            private final java.util.concurrent.atomic.LongAdder count = new java.util.concurrent.atomic.LongAdder();
+            private final java.util.concurrent.atomic.LongAdder sum = new java.util.concurrent.atomic.LongAdder();
+
+            void record(long nanos) {
+                if (nanos < 0) nanos = 0;
+                counts.incrementAndGet(bucket(nanos));
+                count.increment();
+                sum.add(nanos);
+            }
+
+            // Records the time since start and returns now, so phases can be timed back to back
+            long since(long start) {
+                long now = System.nanoTime();
+                record(now - start);
+                return now;
+            }
+
+            private static int bucket(long value) {
+                if (value < SUB_COUNT) return (int) value;
+                int exponent = 63 - Long.numberOfLeadingZeros(value);
+                int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+                return (exponent - SUB_BITS + 1) * SUB_COUNT + mantissa;
+            }
+
+            // Exclusive upper edge of a bucket
+            private static long upperBound(int bucket) {
+                if (bucket < SUB_COUNT) return bucket + 1;
+                int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+                long mantissa = SUB_COUNT + (bucket % SUB_COUNT);
+                return (mantissa + 1) << (exponent - SUB_BITS);
+            }
+
+            long[] snapshot() {
+                long[] copy = new long[counts.length()];
+                for (int i = 0; i < copy.length; i++) copy[i] = counts.get(i);
+                return copy;
+            }
+
+            static long quantile(long[] buckets, long total, double q) {
+                if (total == 0) return 0;
+                long rank = (long) Math.ceil(q * total);
+                long seen = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    seen += buckets[i];
+                    if (seen >= rank) return upperBound(i);
                 }
+                return upperBound(buckets.length - 1);
             }
-            
-            // Toggle button
-            html.append("            <div class='toggle-container'>\n");
-            html.append("                <button class='toggle-button' onclick='toggleAllData()' id='toggleBtn'>Show All Data</button>\n");
-            html.append("            </div>\n");
-            
-            // All additional data (hidden by default)
-            html.append("            <div class='all-data' id='allData'>\n");
-            html.append("                <div class='all-data-header'>Complete Database Information</div>\n");
-            
-            // Display ALL fields from CSV
-            for (Map.Entry<String, String> entry : country.entrySet()) {
-                // Skip fields already shown in main display
-                if (DISPLAY_FIELDS.containsKey(entry.getKey())) continue;
-                
-                String value = entry.getValue().trim();
-                if (!value.isEmpty()) {
-                    html.append("                <div class='field'>\n");
-                    html.append("                    <div class='field-label'>").append(escapeHtml(entry.getKey())).append("</div>\n");
-                    html.append("                    <div class='field-value'>").append(escapeHtml(value)).append("</div>\n");
-                    html.append("                </div>\n");
-                }
-            }
-            html.append("            <p class=\"warning\">Warning: Some information might be outdated or incorrect, please check statistics before using(most of the economical stats are correct, its mostly the Population stats that are incorrect). Some dates are listed but some are missed, if you have any issues please report it to the Github at <a href=\"https://github.com/CappiSRONT/web/issues\" target=\"_blank\">github.com</a>.</p>\n");
-            html.append("            </div>\n");
-            html.append("        </div>\n");
-            
-            // JavaScript for toggle
-            // The acutal code for the toggle script
-            html.append("    <script>\n");
-            html.append("        function toggleAllData() {\n");
-            html.append("            const allData = document.getElementById('allData');\n");
-            html.append("            const btn = document.getElementById('toggleBtn');\n");
-            html.append("            allData.classList.toggle('visible');\n");
-            html.append("            if (allData.classList.contains('visible')) {\n");
-            html.append("                btn.textContent = 'Hide All Data';\n");
-            html.append("                btn.style.background = 'linear-gradient(135deg, #f56565 0%, #ac1010 100%)';\n");
-            html.append("                btn.style.boxShadow = '0 8px 16px rgba(200, 1, 57, 0.3)';\n");
-            html.append("            } else {\n");
-            html.append("                btn.textContent = 'Show All Data';\n");
-            html.append("                btn.style.background = 'linear-gradient(135deg, #48bb78 0%, #38a169 100%)';\n");
-            html.append("                btn.style.boxShadow = '0 8px 16px rgba(72, 187, 120, 0.3)';\n");
-            html.append("            }\n");
-            html.append("        }\n");
-            html.append("    </script>\n");
-            
-        } else {
-            // Multiple results - show list
-            html.append("<div class='multiple-results'>\n");
-            html.append("<h2 style='margin-bottom: 20px;'>Found ").append(results.size()).append(" matches</h2>\n");
-            for (Map<String, String> country : results) {
-                String name = country.getOrDefault("Country", "Unknown");
-                String longName = country.getOrDefault("Government: Country name: conventional long form", "");
-                String displayName = name;
-                if (!longName.isEmpty() && !longName.equals(name) && !longName.equals("none")) {
-                    displayName = name + " (" + longName + ")";
+
+            // Cumulative count of values below le (in nanos), at bucket resolution
+            static long countBelow(long[] buckets, long le) {
+                long below = 0;
+                for (int i = 0; i < buckets.length && upperBound(i) <= le; i++) below += buckets[i];
+                return below;
+            }
+        }
+
+        // Prometheus bucket edges in seconds; the fine-grained buckets are folded into these on scrape
+        private static final double[] BUCKETS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        static String render() {
+            StringBuilder out = new StringBuilder(16384);
+            out.append("# HELP natlas_requests_total Requests handled, by context and status.\n");
+            out.append("# TYPE natlas_requests_total counter\n");
+            HANDLERS.forEach((path, stats) -> {
+                for (int status = 0; status < stats.statuses.length(); status++) {
+                    long n = stats.statuses.get(status);
+                    if (n > 0) out.append("natlas_requests_total{handler=\"").append(path).append("\",code=\"").append(status).append("\"} ").append(n).append('\n');
                 }
-                else
-                {
-                    displayName = name;
-                    System.out.println("Found country name: " + name);
-                }
-                String encoded = URLEncoder.encode(name, java.nio.charset.StandardCharsets.UTF_8);
-                html.append("<a href='/search?q=").append(encoded).append("' class='result-link'>\n");
-                html.append("    ").append(escapeHtml(displayName)).append("\n");
-                html.append("</a>\n");
-            }
-            html.append("        </div>\n");
-        }
-
-        // THe spinny globe
-        html.append("    </div>\n");
-        html.append("    <script>\n");
-        html.append("        const canvas = document.createElement('canvas');\n");
-        html.append("        canvas.width = 64;\n");
-        html.append("        canvas.height = 64;\n");
-        html.append("        const ctx = canvas.getContext('2d');\n");
-        html.append("        const globes = ['🌍', '🌎', '🌏'];\n");
-        html.append("        let frame = 0;\n");
-        html.append("        \n");
-        html.append("        function updateFavicon() {\n");
-        html.append("            ctx.clearRect(0, 0, 64, 64);\n");
-        html.append("            ctx.font = '56px Arial';\n");
-        html.append("            ctx.textAlign = 'center';\n");
-        html.append("            ctx.textBaseline = 'middle';\n");
-        html.append("            ctx.fillText(globes[frame % globes.length], 32, 36);\n");
-        html.append("            \n");
-        html.append("            const link = document.querySelector(\"link[rel*='icon']\") || document.createElement('link');\n");
-        html.append("            link.type = 'image/x-icon';\n");
-        html.append("            link.rel = 'shortcut icon';\n");
-        html.append("            link.href = canvas.toDataURL();\n");
-        html.append("            document.getElementsByTagName('head')[0].appendChild(link);\n");
-        html.append("            \n");
-        html.append("            frame++;\n");
-        html.append("        }\n");
-        html.append("        \n");
-        html.append("        setInterval(updateFavicon, 500);\n");
-        html.append("        updateFavicon();\n");
-        html.append("    </script>\n");
-        html.append("</body>\n");
-        html.append("</html>");
-        
-        return html.toString();
-    }
+            });
+            out.append("# HELP natlas_response_bytes_total Response body bytes written, by context.\n");
+            out.append("# TYPE natlas_response_bytes_total counter\n");
+            HANDLERS.forEach((path, stats) ->
+                out.append("natlas_response_bytes_total{handler=\"").append(path).append("\"} ").append(stats.bytes.sum()).append('\n'));
 
-    private static List<Map<String, String>> searchCountry(String query) {
-    String q = query.toLowerCase().trim();
-    List<Map<String, String>> exactMatches = new ArrayList<>();
-    List<Map<String, String>> partialMatches = new ArrayList<>();
+            out.append("# HELP natlas_request_duration_seconds Time from filter entry to handler exit, by context.\n");
+            out.append("# TYPE natlas_request_duration_seconds histogram\n");
+            HANDLERS.forEach((path, stats) -> appendHistogram(out, "natlas_request_duration_seconds", "handler=\"" + path + "\"", stats.latency));
+            out.append("# HELP natlas_request_duration_quantile_seconds Latency quantiles from the HDR histogram, by context.\n");
+            out.append("# TYPE natlas_request_duration_quantile_seconds gauge\n");
+            HANDLERS.forEach((path, stats) -> appendQuantiles(out, "natlas_request_duration_quantile_seconds", "handler=\"" + path + "\"", stats.latency));
 
-    for (Map<String, String> row : countries) {
-        String name = row.getOrDefault("Country", "").toLowerCase();
-        String longName = row.getOrDefault("Government: Country name: conventional long form", "").toLowerCase();
+            out.append("# HELP natlas_phase_duration_seconds Time spent in the search, render and serialize phases.\n");
+            out.append("# TYPE natlas_phase_duration_seconds histogram\n");
+            appendHistogram(out, "natlas_phase_duration_seconds", "phase=\"search\"", SEARCH);
+            appendHistogram(out, "natlas_phase_duration_seconds", "phase=\"render\"", RENDER);
+            appendHistogram(out, "natlas_phase_duration_seconds", "phase=\"serialize\"", SERIALIZE);
+            out.append("# HELP natlas_phase_duration_quantile_seconds Phase latency quantiles from the HDR histogram.\n");
+            out.append("# TYPE natlas_phase_duration_quantile_seconds gauge\n");
+            appendQuantiles(out, "natlas_phase_duration_quantile_seconds", "phase=\"search\"", SEARCH);
+            appendQuantiles(out, "natlas_phase_duration_quantile_seconds", "phase=\"render\"", RENDER);
+            appendQuantiles(out, "natlas_phase_duration_quantile_seconds", "phase=\"serialize\"", SERIALIZE);
 
-        if (name.equals(q) || longName.equals(q)) {
-            exactMatches.add(row);
-        } else if (name.contains(q) || longName.contains(q)) {
-            partialMatches.add(row);
+            out.append("# HELP natlas_rejected_total Requests answered 503 because the executor was full.\n");
+            out.append("# TYPE natlas_rejected_total counter\n");
+            out.append("natlas_rejected_total ").append(OverloadFilter.rejected.get()).append('\n');
+            ConnectionStats.sweep(System.nanoTime());
+            int active = ConnectionStats.active();
+            out.append("# HELP natlas_connections Client connections seen recently, by whether a request is in flight.\n");
+            out.append("# TYPE natlas_connections gauge\n");
+            out.append("natlas_connections{state=\"active\"} ").append(active).append('\n');
+            out.append("natlas_connections{state=\"idle\"} ").append(Math.max(0, ConnectionStats.tracked() - active)).append('\n');
+            out.append("# HELP natlas_connections_opened_total Connections whose first request we served.\n");
+            out.append("# TYPE natlas_connections_opened_total counter\n");
+            out.append("natlas_connections_opened_total ").append(ConnectionStats.OPENED.sum()).append('\n');
+            out.append("# HELP natlas_connections_closed_total Connections closed by request or by the idle timeout.\n");
+            out.append("# TYPE natlas_connections_closed_total counter\n");
+            out.append("natlas_connections_closed_total ").append(ConnectionStats.CLOSED.sum()).append('\n');
+            out.append("# HELP natlas_connection_reuses_total Requests served on an already open (kept-alive) connection.\n");
+            out.append("# TYPE natlas_connection_reuses_total counter\n");
+            out.append("natlas_connection_reuses_total ").append(ConnectionStats.REUSED.sum()).append('\n');
+            out.append("# HELP natlas_rate_limited_total Requests answered 429 because the client ran out of tokens.\n");
+            out.append("# TYPE natlas_rate_limited_total counter\n");
+            out.append("natlas_rate_limited_total ").append(RateLimitFilter.limited.sum()).append('\n');
+            out.append("# HELP natlas_log_dropped_total Log entries dropped because the log buffer was full.\n");
+            out.append("# TYPE natlas_log_dropped_total counter\n");
+            out.append("natlas_log_dropped_total ").append(Log.dropped()).append('\n');
+            out.append("# HELP natlas_countries Rows in the current data snapshot.\n");
+            out.append("# TYPE natlas_countries gauge\n");
+            out.append("natlas_countries ").append(data.countries.size()).append('\n');
+            out.append("# HELP natlas_result_cache_requests_total Result cache lookups, by outcome.\n");
+            out.append("# TYPE natlas_result_cache_requests_total counter\n");
+            out.append("natlas_result_cache_requests_total{result=\"hit\"} ").append(ResultCache.HITS.sum()).append('\n');
+            out.append("natlas_result_cache_requests_total{result=\"miss\"} ").append(ResultCache.MISSES.sum()).append('\n');
+            out.append("# HELP natlas_result_cache_evictions_total Entries evicted to stay under the size limit.\n");
+            out.append("# TYPE natlas_result_cache_evictions_total counter\n");
+            out.append("natlas_result_cache_evictions_total ").append(ResultCache.EVICTIONS.sum()).append('\n');
+            out.append("# HELP natlas_result_cache_entries Entries in the current snapshot's result cache.\n");
+            out.append("# TYPE natlas_result_cache_entries gauge\n");
+            out.append("natlas_result_cache_entries ").append(data.cache.size()).append('\n');
+            out.append("# HELP natlas_result_cache_bytes Approximate size of the current snapshot's result cache.\n");
+            out.append("# TYPE natlas_result_cache_bytes gauge\n");
+            out.append("natlas_result_cache_bytes ").append(data.cache.bytes()).append('\n');
+            return out.toString();
         }
-    }
 
-        // If we found an exact match, return only that — don't mix in partials
-    if (!exactMatches.isEmpty()) return exactMatches;
-    return partialMatches;
-        
-    }
+        private static void appendHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+            long[] buckets = histogram.snapshot();
+            long total = 0;
+            for (long n : buckets) total += n;
+            for (double le : BUCKETS) {
+                out.append(name).append("_bucket{").append(labels).append(",le=\"").append(label(le)).append("\"} ")
+                    .append(Histogram.countBelow(buckets, (long) (le * 1e9))).append('\n');
+            }
+            out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(total).append('\n');
+            out.append(name).append("_sum{").append(labels).append("} ").append(histogram.sum.sum() / 1e9).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(total).append('\n');
+        }
 
-    // Everything below this point is for the CVS and JSON files.
-    private static String resultsToJSON(List<Map<String, String>> results) {
-        StringBuilder json = new StringBuilder("[");
-        for (int i = 0; i < results.size(); i++) {
-            if (i > 0) json.append(",");
-            json.append("{");
-            Map<String, String> country = results.get(i);
-            boolean first = true;
-            for (Map.Entry<String, String> entry : country.entrySet()) {
-                if (!first) json.append(",");
-                json.append("\"").append(escapeJson(entry.getKey())).append("\":\"")
-                    .append(escapeJson(entry.getValue())).append("\"");
-                first = false;
+        // Plain decimal like other Prometheus clients write it: 0.0001, not Double.toString's 1.0E-4
+        private static String label(double value) {
+            return java.math.BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+        }
+
+        private static void appendQuantiles(StringBuilder out, String name, String labels, Histogram histogram) {
+            long[] buckets = histogram.snapshot();
+            long total = 0;
+            for (long n : buckets) total += n;
+            for (double q : QUANTILES) {
+                out.append(name).append('{').append(labels).append(",quantile=\"").append(label(q)).append("\"} ")
+                    .append(Histogram.quantile(buckets, total, q) / 1e9).append('\n');
             }
-            json.append("}");
         }
-        json.append("]");
-        return json.toString();
     }
 
-    private static String escapeHtml(String str) {
-        return str.replace("&", "&amp;")
-                  .replace("<", "&lt;")
-                  .replace(">", "&gt;")
-                  .replace("\"", "&quot;")
-                  .replace("'", "&#39;");
-    }
+    // Outermost filter on every context: counts the request, its status and body bytes, and times it
+    static class MetricsFilter extends Filter {
+        private final Metrics.HandlerStats stats;
+
+        MetricsFilter(Metrics.HandlerStats stats) {
+            this.stats = stats;
+        }
+
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
+            exchange.setStreams(null, new CountingOutputStream(exchange.getResponseBody(), stats.bytes));
+            ConnectionStats.Connection connection = ConnectionStats.begin(exchange, start);
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                ConnectionStats.end(exchange, connection);
+                int status = exchange.getResponseCode();
+                // No status means the handler died before sending headers
+                stats.statuses.incrementAndGet(status >= 100 && status < 600 ? status : 500);
+                stats.requests.increment();
+                stats.latency.since(start);
+            }
+        }
 
-    private static String escapeJson(String str) {
-        return str.replace("\\", "\\\\")
-                  .replace("\"", "\\\"")
-                  .replace("\n", "\\n")
-                  .replace("\r", "\\r")
-                  .replace("\t", "\\t");
+        public String description() {
+            return "Request counts, status codes, bytes and latency";
+        }
     }
 
-    private static void loadCSV(String path) throws IOException {
-        String content = Files.readString(Path.of(path), java.nio.charset.StandardCharsets.UTF_8);
-        
-        List<String> rawLines = new ArrayList<>();
-        StringBuilder current = new StringBuilder();
-        boolean inQuotes = false;
+    // HttpServer doesn't report connection events, so connections are inferred from the client's
+    // address and port: a request from a pair we have seen before arrived on a kept-alive connection.
+    // A connection counts as active while it has a request in flight and idle until the server's own
+    // idle timeout would have closed it, or until either side asked for Connection: close.
+    static class ConnectionStats {
+        static final java.util.concurrent.atomic.LongAdder OPENED = new java.util.concurrent.atomic.LongAdder();
+        static final java.util.concurrent.atomic.LongAdder REUSED = new java.util.concurrent.atomic.LongAdder();
+        static final java.util.concurrent.atomic.LongAdder CLOSED = new java.util.concurrent.atomic.LongAdder();
+        private static final java.util.concurrent.ConcurrentHashMap<InetSocketAddress, Connection> CONNECTIONS = new java.util.concurrent.ConcurrentHashMap<>();
+        // At most one request in this long pays for a sweep; the rest never touch the whole map
+        private static final long SWEEP_INTERVAL_NANOS = 5_000_000_000L;
+        private static final java.util.concurrent.atomic.AtomicLong LAST_SWEEP = new java.util.concurrent.atomic.AtomicLong(System.nanoTime());
+        static volatile long idleNanos = 30_000_000_000L;
 
-        for (int i = 0; i < content.length(); i++) {
-            char c = content.charAt(i);
-            if (c == '"') {
-                inQuotes = !inQuotes;
-                current.append(c);
-            } else if ((c == '\n' || c == '\r') && !inQuotes) {
-                if (c == '\r' && i + 1 < content.length() && content.charAt(i + 1) == '\n') {
-                    i++;
-                }
-                rawLines.add(current.toString());
-                current = new StringBuilder();
+        static class Connection {
+            final java.util.concurrent.atomic.AtomicInteger inFlight = new java.util.concurrent.atomic.AtomicInteger();
+            volatile long lastUsed;
+        }
+
+        static Connection begin(HttpExchange exchange, long now) {
+            InetSocketAddress peer = exchange.getRemoteAddress();
+            Connection connection = CONNECTIONS.get(peer);
+            // The same port after the idle timeout is a new connection that happens to reuse it
+            if (connection != null && connection.inFlight.get() == 0 && now - connection.lastUsed > idleNanos) {
+                CONNECTIONS.remove(peer, connection);
+                CLOSED.increment();
+                connection = null;
+            }
+            if (connection == null) {
+                Connection fresh = new Connection();
+                connection = CONNECTIONS.putIfAbsent(peer, fresh);
+                if (connection == null) {
+                    connection = fresh;
+                    OPENED.increment();
+                    long last = LAST_SWEEP.get();
+                    if (now - last > SWEEP_INTERVAL_NANOS && LAST_SWEEP.compareAndSet(last, now)) sweep(now);
+                } else {
+                    REUSED.increment();
+                }
             } else {
-                current.append(c);
+                REUSED.increment();
             }
+            connection.inFlight.incrementAndGet();
+            connection.lastUsed = now;
+            return connection;
         }
-        if (!current.isEmpty()) rawLines.add(current.toString());
 
-        if (rawLines.isEmpty()) throw new IOException("CSV file is empty.");
+        static void end(HttpExchange exchange, Connection connection) {
+            connection.lastUsed = System.nanoTime();
+            connection.inFlight.decrementAndGet();
+            if ("close".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Connection"))
+                    || "close".equalsIgnoreCase(exchange.getResponseHeaders().getFirst("Connection"))) {
+                if (CONNECTIONS.remove(exchange.getRemoteAddress(), connection)) CLOSED.increment();
+            }
+        }
 
-        String[] headerCols = splitCSVLine(rawLines.get(0));
-        headers = Arrays.asList(headerCols);
+        // Forgets connections the server has closed for being idle
+        static void sweep(long now) {
+            CONNECTIONS.entrySet().removeIf(entry -> {
+                Connection connection = entry.getValue();
+                boolean expired = connection.inFlight.get() == 0 && now - connection.lastUsed > idleNanos;
+                if (expired) CLOSED.increment();
+                return expired;
+            });
+        }
 
-        for (int i = 1; i < rawLines.size(); i++) {
-            if (rawLines.get(i).isBlank()) continue;
-            String[] cols = splitCSVLine(rawLines.get(i));
-            Map<String, String> row = new LinkedHashMap<>();
-            for (int j = 0; j < headers.size(); j++) {
-                row.put(headers.get(j), j < cols.length ? cols[j] : "");
+        static int active() {
+            int active = 0;
+            for (Connection connection : CONNECTIONS.values()) {
+                if (connection.inFlight.get() > 0) active++;
             }
-            countries.add(row);
+            return active;
+        }
+
+        static int tracked() {
+            return CONNECTIONS.size();
         }
     }
 
-    private static String[] splitCSVLine(String line) {
-        List<String> fields = new ArrayList<>();
-        StringBuilder field = new StringBuilder();
-        boolean inQuotes = false;
+    static class CountingOutputStream extends FilterOutputStream {
+        private final java.util.concurrent.atomic.LongAdder bytes;
 
-        for (int i = 0; i < line.length(); i++) {
-            char c = line.charAt(i);
-            if (c == '"') {
-                if (inQuotes && i + 1 < line.length() && line.charAt(i + 1) == '"') {
-                    field.append('"');
-                    i++;
-                } else {
-                    inQuotes = !inQuotes;
+        CountingOutputStream(OutputStream out, java.util.concurrent.atomic.LongAdder bytes) {
+            super(out);
+            this.bytes = bytes;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes.increment();
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes.add(len);
+        }
+    }
+
+    static class MetricsHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] bytes = Metrics.render().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+
+    static class HomeHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            // Updated this to fix some crud
+            exchange.getResponseHeaders().set("Content-Security-Policy", CSP);
+            // Rendered once per snapshot; no-cache still lets browsers revalidate it with a 304
+            sendResource(exchange, data.homePage, "no-cache");
+        }
+    }
+
+    static class SearchHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = queryParams(exchange);
+            String query = params.getOrDefault("q", "");
+            exchange.getResponseHeaders().set("Content-Security-Policy", CSP);
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            DataSnapshot snapshot = data;
+            String fuzzy = params.get("fuzzy");
+            // The page echoes the query as typed, so unlike the JSON key this one isn't lowercased
+            String key = "html\0" + fuzzy + "\0" + query;
+            long start = System.nanoTime();
+            CachedResult cached = snapshot.cache.get(key);
+            int[] rows = cached != null ? cached.rows : snapshot.find(query, fuzzy);
+            start = Metrics.SEARCH.since(start);
+            if (rows.length == 1) {
+                DetailPage page = snapshot.detailPage(rows[0]);
+                // Any other alias that lands on this country keeps its own copy, so it is compressed once too
+                if (cached == null) {
+                    cached = new CachedResult(rows, query.equals(page.name) ? null : new StaticBytes(page.forQuery(query)), 1);
+                    snapshot.cache.put(key, cached);
                 }
-            } else if (c == ',' && !inQuotes) {
-                fields.add(field.toString());
-                field = new StringBuilder();
-            } else {
-                field.append(c);
+                Metrics.RENDER.since(start);
+                sendCountryPage(exchange, page, query, cached.body != null ? cached.body : page.canonical);
+                return;
+            }
+            if (cached == null) {
+                cached = new CachedResult(rows, new StaticBytes(renderResultsPage(query, snapshot.rows(rows))), rows.length);
+                snapshot.cache.put(key, cached);
+            }
+            Metrics.RENDER.since(start);
+            sendCached(exchange, cached.body);
+        }
+    }
+
+    // Single results come out of the pre-rendered page cache, with a 304 when the client already has it
+    private static void sendCountryPage(HttpExchange exchange, DetailPage page, String query, StaticBytes body) throws IOException {
+        Encoding encoding = Encoding.negotiate(exchange);
+        String etag = encoding.tag(page.etagFor(query));
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "public, max-age=300");
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        sendStatic(exchange, body, encoding);
+    }
+
+    // Sends bytes that were compressed once up front, always with an exact Content-Length
+    private static void sendStatic(HttpExchange exchange, StaticBytes content, Encoding encoding) throws IOException {
+        byte[] bytes = content.get(encoding);
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (encoding != Encoding.IDENTITY) exchange.getResponseHeaders().set("Content-Encoding", encoding.token);
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+    // Cached bodies keep their compressed forms too, but small ones go out as-is like sendBytes
+    private static void sendCached(HttpExchange exchange, StaticBytes body) throws IOException {
+        Encoding encoding = body.identity.length >= Encoding.MIN_SIZE ? Encoding.negotiate(exchange) : Encoding.IDENTITY;
+        sendStatic(exchange, body, encoding);
+    }
+
+    // Content codings we can produce, picked from Accept-Encoding (gzip preferred over deflate)
+    enum Encoding {
+        IDENTITY(null), GZIP("gzip"), DEFLATE("deflate");
+
+        // Below this size compression doesn't pay for its CPU and framing
+        static final int MIN_SIZE = 1024;
+
+        final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        static Encoding negotiate(HttpExchange exchange) {
+            String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (accept == null) return IDENTITY;
+            // An explicit q=0 for a coding wins over a "*" that would otherwise allow it
+            Boolean gzip = null;
+            boolean deflate = false;
+            boolean any = false;
+            for (String part : accept.split(",")) {
+                String[] pieces = part.split(";");
+                String coding = pieces[0].trim().toLowerCase();
+                boolean allowed = pieces.length < 2 || !isZeroQuality(pieces[1]);
+                if (coding.equals("gzip") || coding.equals("x-gzip")) gzip = allowed;
+                if (coding.equals("deflate")) deflate = allowed;
+                if (coding.equals("*")) any = allowed;
+            }
+            return (gzip != null ? gzip : any) ? GZIP : deflate ? DEFLATE : IDENTITY;
+        }
+
+        private static boolean isZeroQuality(String param) {
+            String p = param.trim();
+            if (!p.startsWith("q=")) return false;
+            try {
+                return Double.parseDouble(p.substring(2)) <= 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        // Each coding is a different representation, so it gets its own entity tag
+        String tag(String etag) {
+            if (this == IDENTITY) return etag;
+            return etag.substring(0, etag.length() - 1) + "-" + token + "\"";
+        }
+
+        OutputStream wrap(OutputStream out) throws IOException {
+            switch (this) {
+                case GZIP: return new java.util.zip.GZIPOutputStream(out, 8192);
+                case DEFLATE: return new java.util.zip.DeflaterOutputStream(out);
+                default: return out;
+            }
+        }
+
+        byte[] compress(byte[] bytes, int level) {
+            if (this == IDENTITY) return bytes;
+            java.util.zip.Deflater deflater = new java.util.zip.Deflater(level, this == GZIP);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+                java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                if (this == GZIP) {
+                    // Minimal gzip header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+                    out.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff}, 0, 10);
+                    crc.update(bytes);
+                }
+                deflater.setInput(bytes);
+                deflater.finish();
+                byte[] chunk = new byte[8192];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(chunk);
+                    out.write(chunk, 0, n);
+                }
+                if (this == GZIP) {
+                    writeIntLE(out, (int) crc.getValue());
+                    writeIntLE(out, bytes.length);
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private static void writeIntLE(ByteArrayOutputStream out, int value) {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+
+    // A body that never changes, with each compressed form made once on first use. Bodies kept for the
+    // life of a snapshot or the process are worth the slowest, smallest compression; result cache entries
+    // can be evicted and rebuilt, so they use the default level.
+    static class StaticBytes {
+        final byte[] identity;
+        private final int level;
+        private volatile byte[] gzip;
+        private volatile byte[] deflate;
+
+        StaticBytes(byte[] identity) {
+            this(identity, java.util.zip.Deflater.DEFAULT_COMPRESSION);
+        }
+
+        private StaticBytes(byte[] identity, int level) {
+            this.identity = identity;
+            this.level = level;
+        }
+
+        static StaticBytes kept(byte[] identity) {
+            return new StaticBytes(identity, java.util.zip.Deflater.BEST_COMPRESSION);
+        }
+
+        byte[] get(Encoding encoding) {
+            switch (encoding) {
+                case GZIP:
+                    if (gzip == null) gzip = encoding.compress(identity, level);
+                    return gzip;
+                case DEFLATE:
+                    if (deflate == null) deflate = encoding.compress(identity, level);
+                    return deflate;
+                default:
+                    return identity;
+            }
+        }
+    }
+
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if (candidate.equals("*") || candidate.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    static class APISearchHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            DataSnapshot snapshot = data;
+            Map<String, String> params = queryParams(exchange);
+            String query = params.getOrDefault("q", "");
+            exchange.getResponseHeaders().set("Content-Security-Policy", CSP);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+
+            String[] fields = null;
+            String[] columns = null;
+            String fieldsParam = params.get("fields");
+            int offset;
+            int limit;
+            try {
+                offset = parseCount(params.get("offset"), 0, "offset");
+                limit = parseCount(params.get("limit"), Integer.MAX_VALUE, "limit");
+                String[][] selected = resolveFields(snapshot.countries, fieldsParam);
+                fields = selected[0];
+                columns = selected[1];
+            } catch (IllegalArgumentException e) {
+                sendJsonError(exchange, 400, e.getMessage());
+                return;
+            }
+
+            String fuzzy = params.get("fuzzy");
+            String key = "json\0" + query.toLowerCase().trim() + "\0" + fuzzy + "\0" + fieldsParam + "\0" + offset + "\0" + limit;
+            long start = System.nanoTime();
+            CachedResult cached = snapshot.cache.get(key);
+            if (cached != null && cached.body != null) {
+                Metrics.SEARCH.since(start);
+                exchange.getResponseHeaders().set("X-Total-Count", String.valueOf(cached.total));
+                sendCached(exchange, cached.body);
+                return;
+            }
+
+            // An entry without a body means the page was too big to keep, so skip straight to streaming it
+            int[] rows = cached != null ? cached.rows : snapshot.find(query, fuzzy);
+            List<Row> results = snapshot.rows(rows);
+            start = Metrics.SEARCH.since(start);
+            exchange.getResponseHeaders().set("X-Total-Count", String.valueOf(results.size()));
+            int from = Math.min(offset, results.size());
+            int to = (int) Math.min((long) from + limit, results.size());
+            List<Row> page = results.subList(from, to);
+            // Kept in memory for the cache only while it would still fit there; past that it streams as it's written
+            int maxBody = cached == null ? snapshot.cache.maxBody(key) : 0;
+            JsonWriter json = new JsonWriter(exchange);
+            if (maxBody >= JsonWriter.BUFFER_SIZE) json.capture(maxBody);
+            try {
+                writeResultsJSON(json, page, fields, columns);
+            } finally {
+                json.close();
+            }
+            byte[] body = json.captured();
+            if (body == null) {
+                if (maxBody >= JsonWriter.BUFFER_SIZE) snapshot.cache.put(key, new CachedResult(rows, null, results.size()));
+                Metrics.SERIALIZE.since(start);
+                return;
+            }
+            cached = new CachedResult(null, new StaticBytes(body), results.size());
+            snapshot.cache.put(key, cached);
+            Metrics.SERIALIZE.since(start);
+            sendCached(exchange, cached.body);
+        }
+    }
+
+    // POST /api/batch with a JSON array of names (or one name per line) answers one object keyed by
+    // each distinct input, holding the same matches /api/search would give. fields and fuzzy work as
+    // query parameters just like they do there. A short name can match most of the table, so each name
+    // gets at most limit matches (default 10, max 100) and the whole batch at most MAX_ROWS rows.
+    static class BatchHandler implements HttpHandler {
+        private static final int MAX_BODY = 1 << 20;
+        private static final int MAX_NAMES = 1000;
+        private static final int MAX_LIMIT = 100;
+        private static final int MAX_ROWS = 10_000;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            DataSnapshot snapshot = data;
+            Map<String, String> params = queryParams(exchange);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendJsonError(exchange, 405, "Use POST");
+                return;
+            }
+
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = in.readNBytes(MAX_BODY + 1);
+            }
+            if (body.length > MAX_BODY) {
+                sendJsonError(exchange, 413, "Request body is larger than " + MAX_BODY + " bytes");
+                return;
+            }
+
+            String[] fields = null;
+            String[] columns = null;
+            List<String> names;
+            int limit;
+            try {
+                limit = Math.min(parseCount(params.get("limit"), 10, "limit"), MAX_LIMIT);
+                String fieldsParam = params.get("fields");
+                String[][] selected = resolveFields(snapshot.countries, fieldsParam);
+                fields = selected[0];
+                columns = selected[1];
+                names = parseNames(new String(body, java.nio.charset.StandardCharsets.UTF_8));
+                if (names.size() > MAX_NAMES) throw new IllegalArgumentException("At most " + MAX_NAMES + " names per batch");
+            } catch (IllegalArgumentException e) {
+                sendJsonError(exchange, 400, e.getMessage());
+                return;
+            }
+
+            // The filter charged for one request; the rest of the price depends on how many names there are
+            if (rateLimiter != null && !rateLimiter.charge(exchange, rateLimiter.batchCost(names.size()))) return;
+
+            // Resolve everything first, then stream the answer in one go
+            String fuzzy = params.get("fuzzy");
+            long start = System.nanoTime();
+            LinkedHashMap<String, int[]> resolved = new LinkedHashMap<>();
+            long rows = 0;
+            for (String name : names) {
+                if (resolved.containsKey(name)) continue;
+                int[] matches = snapshot.find(name, fuzzy);
+                if (matches.length > limit) matches = Arrays.copyOf(matches, limit);
+                resolved.put(name, matches);
+                rows += matches.length;
+            }
+            start = Metrics.SEARCH.since(start);
+            if (rows > MAX_ROWS) {
+                sendJsonError(exchange, 413, "Batch would return " + rows + " rows, more than " + MAX_ROWS + "; lower limit or send fewer names");
+                return;
+            }
+            try (JsonWriter json = new JsonWriter(exchange)) {
+                json.raw('{');
+                boolean first = true;
+                for (Map.Entry<String, int[]> entry : resolved.entrySet()) {
+                    if (!first) json.raw(',');
+                    first = false;
+                    json.string(entry.getKey());
+                    json.raw(':');
+                    writeResultsJSON(json, snapshot.rows(entry.getValue()), fields, columns);
+                }
+                json.raw('}');
+            }
+            Metrics.SERIALIZE.since(start);
+        }
+
+        // A JSON array of strings, or failing that one name per non-blank line
+        static List<String> parseNames(String body) {
+            String text = body.strip();
+            if (!text.startsWith("[")) {
+                List<String> names = new ArrayList<>();
+                for (String line : text.split("\r?\n")) {
+                    if (!line.isBlank()) names.add(line.trim());
+                }
+                return names;
+            }
+            return parseStringArray(text);
+        }
+
+        private static List<String> parseStringArray(String text) {
+            List<String> names = new ArrayList<>();
+            int i = skipSpace(text, 1);
+            if (i < text.length() && text.charAt(i) == ']') return checkEnd(text, i + 1, names);
+            while (true) {
+                if (i >= text.length() || text.charAt(i) != '"') throw new IllegalArgumentException("Expected a JSON array of strings");
+                StringBuilder name = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= text.length()) throw new IllegalArgumentException("Unterminated string in JSON body");
+                    char c = text.charAt(i++);
+                    if (c == '"') break;
+                    if (c != '\\') {
+                        name.append(c);
+                        continue;
+                    }
+                    if (i >= text.length()) throw new IllegalArgumentException("Unterminated string in JSON body");
+                    char escaped = text.charAt(i++);
+                    switch (escaped) {
+                        case 'b': name.append('\b'); break;
+                        case 'f': name.append('\f'); break;
+                        case 'n': name.append('\n'); break;
+                        case 'r': name.append('\r'); break;
+                        case 't': name.append('\t'); break;
+                        case 'u':
+                            if (i + 4 > text.length()) throw new IllegalArgumentException("Bad escape in JSON body");
+                            try {
+                                name.append((char) Integer.parseInt(text.substring(i, i + 4), 16));
+                            } catch (NumberFormatException e) {
+                                throw new IllegalArgumentException("Bad escape in JSON body");
+                            }
+                            i += 4;
+                            break;
+                        default: name.append(escaped);
+                    }
+                }
+                names.add(name.toString().trim());
+                i = skipSpace(text, i);
+                if (i < text.length() && text.charAt(i) == ',') {
+                    i = skipSpace(text, i + 1);
+                } else if (i < text.length() && text.charAt(i) == ']') {
+                    return checkEnd(text, i + 1, names);
+                } else {
+                    throw new IllegalArgumentException("Expected , or ] in JSON body");
+                }
+            }
+        }
+
+        private static List<String> checkEnd(String text, int i, List<String> names) {
+            if (skipSpace(text, i) != text.length()) throw new IllegalArgumentException("Unexpected content after JSON array");
+            return names;
+        }
+
+        private static int skipSpace(String text, int i) {
+            while (i < text.length() && Character.isWhitespace(text.charAt(i))) i++;
+            return i;
+        }
+    }
+
+    // Filters and top-K sorts over the numeric columns, e.g.
+    //   /api/query?where=population:gt:100000000,median_age:lt:30&sort=-gdp_per_capita&limit=10
+    // Filters are column:op:value with op one of gt, gte, lt, lte, eq, ne. The symbolic form
+    // (population>100000000) works too, but < and > must then be sent percent-encoded (%3E, %3C)
+    // or the HTTP server rejects the request line. Each result has the country name and its numbers
+    // (null when the CSV had none), plus any raw fields asked for with fields=. X-Total-Count is how
+    // many rows passed the filters and, when sorting, have a value for the sort column.
+    static class QueryHandler implements HttpHandler {
+        private static final int MAX_LIMIT = 1000;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            DataSnapshot snapshot = data;
+            Map<String, String> params = queryParams(exchange);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+
+            NumericColumns.Query query;
+            String[] fields = null;
+            String[] columns = null;
+            try {
+                query = NumericColumns.Query.parse(params.get("where"), params.get("sort"),
+                    parseCount(params.get("offset"), 0, "offset"), Math.min(parseCount(params.get("limit"), 20, "limit"), MAX_LIMIT));
+                String fieldsParam = params.get("fields");
+                String[][] selected = resolveFields(snapshot.countries, fieldsParam);
+                fields = selected[0];
+                columns = selected[1];
+            } catch (IllegalArgumentException e) {
+                sendJsonError(exchange, 400, e.getMessage());
+                return;
+            }
+
+            long start = System.nanoTime();
+            int[] total = new int[1];
+            int[] rows = snapshot.numbers.run(query, total);
+            start = Metrics.SEARCH.since(start);
+            exchange.getResponseHeaders().set("X-Total-Count", String.valueOf(total[0]));
+            try (JsonWriter json = new JsonWriter(exchange)) {
+                json.raw('[');
+                for (int i = 0; i < rows.length; i++) {
+                    if (i > 0) json.raw(',');
+                    Row country = snapshot.countries.row(rows[i]);
+                    json.raw('{');
+                    json.string("Country");
+                    json.raw(':');
+                    json.string(country.getOrDefault("Country", ""));
+                    for (int c = 0; c < NumericColumns.KEYS.length; c++) {
+                        json.raw(',');
+                        json.string(NumericColumns.KEYS[c]);
+                        json.raw(':');
+                        json.raw(NumericColumns.format(snapshot.numbers.value(c, rows[i])));
+                    }
+                    for (int f = 0; fields != null && f < fields.length; f++) {
+                        json.raw(',');
+                        json.string(fields[f]);
+                        json.raw(':');
+                        json.string(country.getOrDefault(columns[f], ""));
+                    }
+                    json.raw('}');
+                }
+                json.raw(']');
+            }
+            Metrics.SERIALIZE.since(start);
+        }
+    }
+
+    // Typeahead: /api/suggest?q=ger&limit=10 answers ["Germany", ...] straight from the prefix index
+    static class SuggestHandler implements HttpHandler {
+        private static final int MAX_LIMIT = 50;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            DataSnapshot snapshot = data;
+            Map<String, String> params = queryParams(exchange);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            int limit;
+            try {
+                limit = Math.min(parseCount(params.get("limit"), 10, "limit"), MAX_LIMIT);
+            } catch (IllegalArgumentException e) {
+                sendJsonError(exchange, 400, e.getMessage());
+                return;
+            }
+
+            long start = System.nanoTime();
+            int[] rows = snapshot.suggestions.suggest(params.getOrDefault("q", ""), limit);
+            start = Metrics.SEARCH.since(start);
+            exchange.getResponseHeaders().set("Cache-Control", "public, max-age=60");
+            try (JsonWriter json = new JsonWriter(exchange)) {
+                json.raw('[');
+                for (int i = 0; i < rows.length; i++) {
+                    if (i > 0) json.raw(',');
+                    json.string(snapshot.suggestions.name(rows[i]));
+                }
+                json.raw(']');
+            }
+            Metrics.SERIALIZE.since(start);
+        }
+    }
+
+    // Decodes the raw query string once; a key without a value maps to ""
+    private static Map<String, String> queryParams(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) return params;
+        for (String param : raw.split("&")) {
+            if (param.isEmpty()) continue;
+            int eq = param.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), java.nio.charset.StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), java.nio.charset.StandardCharsets.UTF_8);
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    private static int parseCount(String value, int fallback, String name) {
+        if (value == null || value.isBlank()) return fallback;
+        try {
+            int count = Integer.parseInt(value.trim());
+            if (count >= 0) return count;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(name + " must be a non-negative integer");
+    }
+
+    // Accepts a raw CSV header or one of the friendly DISPLAY_FIELDS names (case-insensitive)
+    private static String resolveField(CountryTable countries, String field) {
+        if (countries.column(field) >= 0) return field;
+        for (Map.Entry<String, String> display : DISPLAY_FIELDS.entrySet()) {
+            if (display.getValue().equalsIgnoreCase(field)) return display.getKey();
+        }
+        throw new IllegalArgumentException("Unknown field: " + field);
+    }
+
+    // The trimmed names from a comma separated fields parameter and the columns they resolve to,
+    // or two nulls when no fields were asked for
+    private static String[][] resolveFields(CountryTable countries, String fieldsParam) {
+        if (fieldsParam == null || fieldsParam.isBlank()) return new String[2][];
+        String[] fields = fieldsParam.split(",");
+        String[] columns = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = fields[i].trim();
+            columns[i] = resolveField(countries, fields[i]);
+        }
+        return new String[][] {fields, columns};
+    }
+
+    private static void sendJsonError(HttpExchange exchange, int status, String message) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        try (JsonWriter json = new JsonWriter(exchange, status)) {
+            json.raw('{');
+            json.string("error");
+            json.raw(':');
+            json.string(message);
+            json.raw('}');
+        }
+    }
+
+    // Every page is put together from these templates. Each is split into UTF-8 byte segments once,
+    // so rendering only copies those segments and encodes the values that change.
+    static class Pages {
+        static final Template HOME = Template.compile(
+            "<!DOCTYPE html>\n" +
+            "<html lang='en'>\n" +
+            "<head>\n" +
+            "    <meta charset='UTF-8'>\n" +
+            "    <meta name='viewport' content='width=device-width, initial-scale=1.0'>\n" +
+            "    <title>Natlas</title>\n" +
+            "    <link rel='stylesheet' href='" + Assets.HOME_CSS.url + "'>\n" +
+            Assets.faviconLink() +
+            "</head>\n" +
+            "<body>\n" +
+            "    <div class='container'>\n" +
+            "        <div class='globe'>?</div>\n" +
+            "        <h1>National Atlas</h1>\n" +
+            "        <p class='subtitle'>Explore detailed information about any country, region, or territory, from Italy to Canada; Using backed information from the CIA.</p>\n" +
+            "        <form action='/search' method='GET' class='search-box'>\n\n" +
+            "            <input type='text' name='q' placeholder='Enter country name...' required autofocus>\n" +
+            "            <button type='submit'>Search</button>\n" +
+            "        </form>\n" +
+            "        <p class='info'>Try searching: United States, Germany, Japan, Brazil; Or use abreviation like, ger, united, or braz.</p>\n" +
+            "        <p class='info' style='margin-top: 10px;'>{{count}} countries, regions, or territorys current publicly loaded.</p>\n" +
+            "        <p class='claus' style='margin-top: 3px;'>All information is sourced from the Central Intelligence Agency (2024) & Gerald Bauer (Feb 25st, 2026).\nCurrent Web Version:0.0.84\nOriginal Creator - A-Palmer</p>\n" +
+            "    </div>\n" +
+            "</body>\n" +
+            "</html>");
+
+        // Everything before the results, the only part of a results page that depends on the query
+        static final Template HEAD = Template.compile(
+            "<!DOCTYPE html>\n" +
+            "<html lang='en'>\n" +
+            "<head>\n" +
+            "    <meta charset='UTF-8'>\n" +
+            "    <meta name='viewport' content='width=device-width, initial-scale=1.0'>\n" +
+            "    <title>Natlas - {{query}}</title>\n" +
+            "    <link rel='stylesheet' href='" + Assets.RESULTS_CSS.url + "'>\n" +
+            "    <script src='" + Assets.RESULTS_JS.url + "' defer></script>\n" +
+            Assets.faviconLink() +
+            "</head>\n" +
+            "<body>\n" +
+            "    <div class='header'>\n" +
+            "        <a href='/' class='back-link'>Back to Search</a>\n" +
+            "        <h1>Search Results</h1>\n" +
+            "        <p class='subtitle'>Alias Searched: \"{{query}}\"</p>\n" +
+            "    </div>\n" +
+            "    <div class='container'>\n");
+
+        static final Template NO_RESULTS = Template.compile(
+            "        <div class='no-results'>\n" +
+            "            <h2>No countries found...</h2>\n" +
+            "            <p>Try searching for \"United States\", \"Germany\", or \"Japan\"</p>\n" +
+            "        </div>\n");
+
+        static final Template LIST_OPEN = Template.compile(
+            "<div class='multiple-results'>\n" +
+            "<h2 style='margin-bottom: 20px;'>Found {{count}} matches</h2>\n");
+
+        static final Template LIST_LINK = Template.compile(
+            "<a href='/search?q={{href}}' class='result-link'>\n" +
+            "    {{name}}\n" +
+            "</a>\n");
+
+        static final Template LIST_LINK_LONG = Template.compile(
+            "<a href='/search?q={{href}}' class='result-link'>\n" +
+            "    {{name}} ({{longName}})\n" +
+            "</a>\n");
+
+        static final Template LIST_CLOSE = Template.compile(
+            "        </div>\n");
+
+        static final Template DETAIL_OPEN = Template.compile(
+            "<div class='country-card'>\n" +
+            "<h2 class='country-name'>{{name}}</h2>\n");
+
+        static final Template FIELD = Template.compile(
+            "            <div class='field'>\n" +
+            "                <div class='field-label'>{{label}}</div>\n" +
+            "                <div class='field-value'>{{value}}</div>\n" +
+            "            </div>\n");
+
+        // Toggle button, then all additional data (hidden by default)
+        static final Template ALL_DATA_OPEN = Template.compile(
+            "            <div class='toggle-container'>\n" +
+            "                <button class='toggle-button' onclick='toggleAllData()' id='toggleBtn'>Show All Data</button>\n" +
+            "            </div>\n" +
+            "            <div class='all-data' id='allData'>\n" +
+            "                <div class='all-data-header'>Complete Database Information</div>\n");
+
+        static final Template ALL_DATA_FIELD = Template.compile(
+            "                <div class='field'>\n" +
+            "                    <div class='field-label'>{{label}}</div>\n" +
+            "                    <div class='field-value'>{{value}}</div>\n" +
+            "                </div>\n");
+
+        static final Template DETAIL_CLOSE = Template.compile(
+            "            <p class=\"warning\">Warning: Some information might be outdated or incorrect, please check statistics before using(most of the economical stats are correct, its mostly the Population stats that are incorrect). Some dates are listed but some are missed, if you have any issues please report it to the Github at <a href=\"https://github.com/CappiSRONT/web/issues\" target=\"_blank\">github.com</a>.</p>\n" +
+            "            </div>\n" +
+            "        </div>\n");
+
+        static final Template FOOT = Template.compile(
+            "    </div>\n" +
+            "</body>\n" +
+            "</html>");
+    }
+
+    // Splits text at {{slot}} markers. Slots are numbered by first appearance, so a slot used twice
+    // takes one value. A String value is HTML-escaped on the way out; a byte[] value is taken to be
+    // escaped UTF-8 already (see CountryTable.html) and copied as-is.
+    static class Template {
+        private final byte[][] segments;
+        // slotAt[i] is the value written after segments[i]; the last segment has no slot
+        private final int[] slotAt;
+
+        private Template(byte[][] segments, int[] slotAt) {
+            this.segments = segments;
+            this.slotAt = slotAt;
+        }
+
+        static Template compile(String source) {
+            List<byte[]> segments = new ArrayList<>();
+            List<Integer> slotAt = new ArrayList<>();
+            List<String> slots = new ArrayList<>();
+            int from = 0;
+            int open;
+            while ((open = source.indexOf("{{", from)) >= 0) {
+                int close = source.indexOf("}}", open);
+                if (close < 0) throw new IllegalArgumentException("Unclosed slot in template at " + open);
+                segments.add(source.substring(from, open).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                String slot = source.substring(open + 2, close);
+                if (!slots.contains(slot)) slots.add(slot);
+                slotAt.add(slots.indexOf(slot));
+                from = close + 2;
+            }
+            segments.add(source.substring(from).getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            int[] slotIndexes = new int[slotAt.size()];
+            for (int i = 0; i < slotIndexes.length; i++) slotIndexes[i] = slotAt.get(i);
+            return new Template(segments.toArray(new byte[0][]), slotIndexes);
+        }
+
+        void render(PageBuffer out, Object... values) {
+            for (int i = 0; i < slotAt.length; i++) {
+                out.write(segments[i]);
+                Object value = values[slotAt[i]];
+                if (value instanceof byte[]) {
+                    out.write((byte[]) value);
+                } else {
+                    out.escaped((String) value);
+                }
+            }
+            out.write(segments[slotAt.length]);
+        }
+    }
+
+    // Writes a non-ASCII code point as UTF-8 at pos and returns the new position; room for 4 bytes is
+    // the caller's job. Only the escaping differs between HTML and JSON, so both writers share this.
+    static int utf8(int cp, byte[] buf, int pos) {
+        if (cp < 0x800) {
+            buf[pos++] = (byte) (0xC0 | (cp >> 6));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (cp > 0xFFFF) {
+            buf[pos++] = (byte) (0xF0 | (cp >> 18));
+            buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (Character.isSurrogate((char) cp)) {
+            // Same replacement String.getBytes uses for a broken surrogate pair
+            buf[pos++] = '?';
+        } else {
+            buf[pos++] = (byte) (0xE0 | (cp >> 12));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+        }
+        return pos;
+    }
+
+    // Growable UTF-8 byte buffer pages are rendered into, so text is encoded (and escaped) once straight
+    // into the bytes that get sent or cached instead of going through a StringBuilder and getBytes.
+    static class PageBuffer {
+        private byte[] buf;
+        private int pos;
+
+        PageBuffer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void write(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, pos, length);
+            pos += length;
+        }
+
+        void escaped(String s) {
+            encode(s, true);
+        }
+
+        void text(String s) {
+            encode(s, false);
+        }
+
+        private void encode(String s, boolean escape) {
+            int length = s.length();
+            // "&quot;" is the longest any single char can get
+            ensure(length * 6);
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    if (escape && (c == '&' || c == '<' || c == '>' || c == '"' || c == '\'')) {
+                        String entity = htmlEntity(c);
+                        for (int e = 0; e < entity.length(); e++) buf[pos++] = (byte) entity.charAt(e);
+                    } else {
+                        buf[pos++] = (byte) c;
+                    }
+                } else {
+                    int cp = s.codePointAt(i);
+                    if (cp > 0xFFFF) i++;
+                    pos = utf8(cp, buf, pos);
+                }
+            }
+        }
+
+        int size() {
+            return pos;
+        }
+
+        void reset() {
+            pos = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, pos);
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+        }
+    }
+
+    static byte[] renderHomePage(int countryCount) {
+        PageBuffer out = new PageBuffer(8192);
+        Pages.HOME.render(out, String.valueOf(countryCount));
+        return out.toByteArray();
+    }
+
+    static byte[] renderResultsPage(String query, List<Row> results) {
+        PageBuffer out = new PageBuffer(results.size() == 1 ? 65536 : 4096 + results.size() * 128);
+        Pages.HEAD.render(out, query);
+
+        // If there is no result 
+        if (results.isEmpty()) {
+            Pages.NO_RESULTS.render(out);
+        } else if (results.size() == 1) {
+            renderCountryDetail(out, results.get(0));
+        } else {
+            // Multiple results - show list
+            Pages.LIST_OPEN.render(out, String.valueOf(results.size()));
+            for (Row country : results) {
+                String name = country.getOrDefault("Country", "Unknown");
+                String longName = country.getOrDefault("Government: Country name: conventional long form", "");
+                // Names come pre-escaped from the snapshot, so listing them escapes nothing
+                Object nameHtml = country.html("Country", name);
+                String href = URLEncoder.encode(name, java.nio.charset.StandardCharsets.UTF_8);
+                if (!longName.isEmpty() && !longName.equals(name) && !longName.equals("none")) {
+                    Pages.LIST_LINK_LONG.render(out, href, nameHtml, country.html("Government: Country name: conventional long form", longName));
+                }
+                else
+                {
+                    if (Log.sampleDebug()) Log.debug("Found country name: " + name);
+                    Pages.LIST_LINK.render(out, href, nameHtml);
+                }
+            }
+            Pages.LIST_CLOSE.render(out);
+        }
+
+        Pages.FOOT.render(out);
+        return out.toByteArray();
+    }
+
+    private static void renderCountryDetail(PageBuffer out, Row country) {
+        // Single result - show full details
+        String displayName = country.getOrDefault("Country", "Unknown");
+        Object displayNameHtml = country.html("Country", displayName);
+        Pages.DETAIL_OPEN.render(out, displayNameHtml);
+        
+        // Display main fields
+        for (Map.Entry<String, String> field : DISPLAY_FIELDS.entrySet()) {
+            if (field.getKey().equals("Country")) continue;
+            String value = country.getOrDefault(field.getKey(), "").trim();
+            if (!value.isEmpty() && !value.equals("none")) { 
+                if (Log.sampleDebug()) Log.debug("Data was found to be normal.");
+                Pages.FIELD.render(out, field.getValue(), country.htmlTrimmed(field.getKey()));
+            }
+            else if (value.equals("none") && field.getValue().equals("Official Name"))
+            {
+                if (Log.sampleDebug()) Log.debug("Data was found to be out of place or set to none. The acutal data that is broken is in: " + field.getValue() + "( "+ value +" )"+ ". The data it was repaced with is: " + displayName);
+                Pages.FIELD.render(out, field.getValue(), displayNameHtml);
+            }
+        }
+        
+        Pages.ALL_DATA_OPEN.render(out);
+        // Display ALL fields from CSV
+        for (int i = 0; i < country.fieldCount(); i++) {
+            // Skip fields already shown in main display
+            if (DISPLAY_FIELDS.containsKey(country.header(i))) continue;
+            
+            String value = country.value(i).trim();
+            if (!value.isEmpty()) {
+                Pages.ALL_DATA_FIELD.render(out, country.htmlHeader(i), country.htmlTrimmed(i));
+            }
+        }
+        Pages.DETAIL_CLOSE.render(out);
+    }
+
+    // Stylesheets, scripts and the favicon, loaded once and served from memory under versioned URLs.
+    // Pages link to "?v=<hash>" so these can be cached forever and still change on redeploy.
+    static class Assets {
+        static final Map<String, StaticResource> BY_PATH = new HashMap<>();
+
+        static final StaticResource HOME_CSS = text("/static/home.css", "text/css; charset=UTF-8",
+            "* { margin: 0; padding: 0; box-sizing: border-box; }\n" +
+            "body {\n" +
+            "    font-family: ui-serif, 'Charter', 'Bitstream Charter', Georgia, Cambria, 'Times New Roman', Times, serif;\n" +
+            "    background: linear-gradient(450deg, #1e1e1e 35%, #ababab 100%);\n" +
+            "    min-height: 100vh;\n" +
+            "    display: flex;\n" +
+            "    align-items: center;\n" +
+            "    justify-content: center;\n" +
+            "    padding: 15px;\n" +
+            "}\n" +
+            ".container {\n" +
+            "    background: white;\n" +
+            "    border-radius: 12px;\n" +
+            "    box-shadow: 0 20px 60px rgba(0,0,0,0.3);\n" +
+            "    padding: 60px 40px;\n" +
+            "    max-width: 600px;\n" +
+            "    width: 100%;\n" +
+            "    text-align: center;\n" +
+            "}\n" +
+            "h1 {\n" +
+            "    color: #000000;\n" +
+            "    font-size: 2.5em;\n" +
+            "    margin-bottom: 10px;\n" +
+            "}\n" +
+            ".subtitle {\n" +
+            "    color: #949494;\n" +
+            "    font-size: 1.1em;\n" +
+            "    margin-bottom: 40px;\n" +
+            "}\n" +
+            ".search-box {\n" +
+            "    position: relative;\n" +
+            "    margin-bottom: 25px;\n" +
+            "}\n" +
+            "input[type='text'] {\n" +
+            "    width: 100%;\n" +
+            "    padding: 18px 24px;\n" +
+            "    font-size: 1.1em;\n" +
+            "    border: 2px solid #e2e8f0;\n" +
+            "    border-radius: 12px;\n" +
+            "    outline: none;\n" +
+            "    margin-bottom: 20px;\n" +
+            "    transition: all 0.3s;\n" +
+            "}\n" +
+            "input[type='text']:focus {\n" +
+            "    border-color: #a3a3a3;\n" +
+            "    margin-top: 30px;\n" +
+            "    box-shadow: 0 0 0 3px rgba(230, 230, 230, 0.1);\n" +
+            "}\n" +
+            "button {\n" +
+            "    width: 100%;\n" +
+            "    padding: 18px;\n" +
+            "    font-size: 1.1em;\n" +
+            "    font-weight: 600;\n" +
+            "    color: white;\n" +
+            "    background: linear-gradient(135deg, #1e1e1e 0%, #ababab 100%);\n" +
+            "    border: none;\n" +
+            "    border-radius: 12px;\n" +
+            "    cursor: pointer;\n" +
+            "    transition: transform 0.2s, box-shadow 0.2s;\n" +
+            "}\n" +
+            "button:hover {\n" +
+            "    transform: translateY(-2px);\n" +
+            "    box-shadow: 0 10px 20px rgba(123, 123, 123, 0.3);\n" +
+            "}\n" +
+            "button:active {\n" +
+            "    transform: translateY(0);\n" +
+            "}\n" +
+            ".globe {\n" +
+            "    font-size: 4em;\n" +
+            "    margin-bottom: 20px;\n" +
+            "    animation: float 4s ease-in-out infinite;\n" +
+            "}\n" +
+            "@keyframes float {\n" +
+            "    0%, 100% { transform: translateY(0px); }\n" +
+            "    50% { transform: translateY(-20px); }\n" +
+            "}\n" +
+            ".info {\n" +
+            "    color: #949494;\n" +
+            "    font-size: 0.95em;\n" +
+            "}\n" +
+            ".claus {\n" +
+            "    color: #000000;\n" +
+            "    font-size: 0.60em;\n" +
+            "}\n");
+
+        static final StaticResource RESULTS_CSS = text("/static/results.css", "text/css; charset=UTF-8",
+            "* { margin: 0; padding: 0; box-sizing: border-box; }\n" +
+            "body {\n" +
+            "    font-family: ui-serif, 'Charter', 'Bitstream Charter', Georgia, Cambria, 'Times New Roman', Times, serif;\n" +
+            "    background: linear-gradient(25deg, #1e1e1e 0%, #ababab 100%);\n" +
+            "    min-height: 100vh;\n" +
+            "    padding: 40px 20px;\n" +
+            "}\n" +
+            ".header {\n" +
+            "    text-align: center;\n" +
+            "    color: white;\n" +
+            "    margin-bottom: 30px;\n" +
+            "}\n" +
+            "h1 { font-size: 2.5em; margin-bottom: 10px; }\n" +
+            ".subtitle { font-size: 1.2em; opacity: 0.9; }\n" +
+            ".container {\n" +
+            "    max-width: 900px;\n" +
+            "    margin: 0 auto;\n" +
+            "    background: white;\n" +
+            "    border-radius: 20px;\n" +
+            "    box-shadow: 0 20px 60px rgba(0,0,0,0.3);\n" +
+            "    padding: 40px;\n" +
+            "}\n" +
+            ".country-card {\n" +
+            "    margin-bottom: 30px;\n" +
+            "}\n" +
+            ".country-name {\n" +
+            "    font-size: 2em;\n" +
+            "    color: #000000;\n" +
+            "    margin-bottom: 20px;\n" +
+            "    padding-bottom: 15px;\n" +
+            "    border-bottom: 3px solid #4c4c4c;\n" +
+            "}\n" +
+            ".toggle-container {\n" +
+            "    margin: 20px 0;\n" +
+            "    text-align: center;\n" +
+            "}\n" +
+            ".toggle-button {\n" +
+            "    display: inline-block;\n" +
+            "    padding: 12px 24px;\n" +
+            "    font-size: 1em;\n" +
+            "    font-weight: 600;\n" +
+            "    color: white;\n" +
+            "    background: linear-gradient(135deg, #48bb78 0%, #007e29 100%);\n" +
+            "    border: none;\n" +
+            "    border-radius: 8px;\n" +
+            "    cursor: pointer;\n" +
+            "    transition: transform 0.2s, box-shadow 0.2s;\n" +
+            "}\n" +
+            ".toggle-button:hover {\n" +
+            "    transform: translateY(-2px);\n" +
+            "    box-shadow: 0 8px 16px rgba(72, 187, 120, 0.3);\n" +
+            "}\n" +
+            ".toggle-button:active {\n" +
+            "    transform: translateY(0);\n" +
+            "}\n" +
+            ".field {\n" +
+            "    margin-bottom: 15px;\n" +
+            "    padding: 15px;\n" +
+            "    background: #f7fafc;\n" +
+            "    border-radius: 8px;\n" +
+            "    border-left: 4px solid #a6a6a6;\n" +
+            "}\n" +
+            ".field-label {\n" +
+            "    font-weight: 600;\n" +
+            "    color: #000000;\n" +
+            "    margin-bottom: 5px;\n" +
+            "    font-size: 0.9em;\n" +
+            "    text-transform: uppercase;\n" +
+            "    letter-spacing: 0.5px;\n" +
+            "}\n" +
+            ".field-value {\n" +
+            "    color: #434343;\n" +
+            "    font-size: 1.05em;\n" +
+            "    line-height: 1.6;\n" +
+            "}\n" +
+            ".all-data {\n" +
+            "    display: none;\n" +
+            "    margin-top: 20px;\n" +
+            "    padding-top: 20px;\n" +
+            "    border-top: 2px dashed #e1e1e1;\n" +
+            "}\n" +
+            ".all-data.visible {\n" +
+            "    display: block;\n" +
+            "}\n" +
+            ".all-data-header {\n" +
+            "    font-size: 1.3em;\n" +
+            "    color: #000000;\n" +
+            "    margin-bottom: 15px;\n" +
+            "    font-weight: 600;\n" +
+            "}\n" +
+            ".back-link {\n" +
+            "    display: inline-block;\n" +
+            "    color: white;\n" +
+            "    text-decoration: none;\n" +
+            "    font-weight: 600;\n" +
+            "    padding: 10px 20px;\n" +
+            "    background: rgba(255,255,255,0.2);\n" +
+            "    border-radius: 8px;\n" +
+            "    transition: background 0.2s;\n" +
+            "    margin-bottom: 20px;\n" +
+            "}\n" +
+            ".back-link:hover {\n" +
+            "    background: rgba(255,255,255,0.3);\n" +
+            "}\n" +
+            ".no-results {\n" +
+            "    text-align: center;\n" +
+            "    padding: 60px 20px;\n" +
+            "}\n" +
+            ".no-results h2 {\n" +
+            "    color: #404040;\n" +
+            "    font-size: 2em;\n" +
+            "    margin-bottom: 15px;\n" +
+            "}\n" +
+            ".no-results p {\n" +
+            "    color: #989898;\n" +
+            "    font-size: 1.1em;\n" +
+            "}\n" +
+            ".multiple-results {\n" +
+            "    padding: 20px;\n" +
+            "}\n" +
+            ".result-link {\n" +
+            "    display: block;\n" +
+            "    padding: 18px 24px;\n" +
+            "    margin-bottom: 12px;\n" +
+            "    background: #f7fafc;\n" +
+            "    color: #404040;\n" +
+            "    text-decoration: none;\n" +
+            "    border-radius: 10px;\n" +
+            "    border-left: 4px solid #989898;\n" +
+            "    font-weight: 500;\n" +
+            "    font-size: 1.1em;\n" +
+            "    transition: all 0.2s;\n" +
+            "}\n" +
+            ".result-link:hover {\n" +
+            "    background: #edf2f7;\n" +
+            "    transform: translateX(5px);\n" +
+            "}\n" +
+            ".warning {\n" +
+            "    color: #000000;\n" +
+            "    font-size: 1.05em;\n" +
+            "    line-height: 1.6;\n" +
+            "}\n");
+
+        static final StaticResource RESULTS_JS = text("/static/results.js", "text/javascript; charset=UTF-8",
+            "function toggleAllData() {\n" +
+            "    const allData = document.getElementById('allData');\n" +
+            "    const btn = document.getElementById('toggleBtn');\n" +
+            "    allData.classList.toggle('visible');\n" +
+            "    if (allData.classList.contains('visible')) {\n" +
+            "        btn.textContent = 'Hide All Data';\n" +
+            "        btn.style.background = 'linear-gradient(135deg, #f56565 0%, #ac1010 100%)';\n" +
+            "        btn.style.boxShadow = '0 8px 16px rgba(200, 1, 57, 0.3)';\n" +
+            "    } else {\n" +
+            "        btn.textContent = 'Show All Data';\n" +
+            "        btn.style.background = 'linear-gradient(135deg, #48bb78 0%, #38a169 100%)';\n" +
+            "        btn.style.boxShadow = '0 8px 16px rgba(72, 187, 120, 0.3)';\n" +
+            "    }\n" +
+            "}\n");
+
+        // GIFs are already compressed, so this one is only ever sent as-is
+        static final StaticResource FAVICON = loadFile("/favicon.gif", "image/gif", false,
+            Path.of(envOrDefault("FAVICON_PATH", "favicon.gif")));
+
+        private static StaticResource text(String path, String contentType, String text) {
+            return add(path, contentType, true, text.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        }
+
+        private static StaticResource add(String path, String contentType, boolean compressible, byte[] bytes) {
+            StaticResource resource = new StaticResource(path, contentType, compressible, bytes);
+            BY_PATH.put(path, resource);
+            return resource;
+        }
+
+        private static StaticResource loadFile(String path, String contentType, boolean compressible, Path file) {
+            try {
+                return add(path, contentType, compressible, Files.readAllBytes(file));
+            } catch (IOException e) {
+                Log.warn("Static file " + file + " not available, " + path + " won't be served: " + e.getMessage());
+                return null;
+            }
+        }
+
+        static String faviconLink() {
+            if (FAVICON == null) return "";
+            return "    <link rel='icon' type='image/gif' href='" + FAVICON.url + "'>\n";
+        }
+    }
+
+    static class StaticResource {
+        final String contentType;
+        final boolean compressible;
+        final StaticBytes body;
+        final String hash;
+        final String url;
+
+        StaticResource(String path, String contentType, boolean compressible, byte[] bytes) {
+            this.contentType = contentType;
+            this.compressible = compressible;
+            this.body = StaticBytes.kept(bytes);
+            this.hash = contentHash(bytes);
+            this.url = path == null ? null : path + "?v=" + hash;
+        }
+    }
+
+    static class StaticHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            StaticResource resource = Assets.BY_PATH.get(exchange.getRequestURI().getPath());
+            if (resource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            // Only the exact versioned URL is immutable; anything else may be stale after a redeploy
+            boolean versioned = ("v=" + resource.hash).equals(exchange.getRequestURI().getRawQuery());
+            sendResource(exchange, resource, versioned ? "public, max-age=31536000, immutable" : "public, max-age=3600");
+        }
+    }
+
+    private static void sendResource(HttpExchange exchange, StaticResource resource, String cacheControl) throws IOException {
+        Encoding encoding = resource.compressible ? Encoding.negotiate(exchange) : Encoding.IDENTITY;
+        String etag = encoding.tag("\"" + resource.hash + "\"");
+        exchange.getResponseHeaders().set("Content-Type", resource.contentType);
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+        // The 304 has to carry Vary too, or a cache may hand the gzip variant to a client without gzip
+        if (resource.compressible) exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        sendStatic(exchange, resource.body, encoding);
+    }
+
+    // A country's detail page rendered once (under its own name as the query) and kept as UTF-8 bytes.
+    // bodyOffset marks where the query-independent part starts, so other aliases can reuse it.
+    // pageHash covers the head too, so a deploy that changes the template or the versioned CSS/JS
+    // URLs in it changes every ETag instead of revalidating pages that point at old assets.
+    static class DetailPage {
+        final String name;
+        final StaticBytes canonical;
+        final int bodyOffset;
+        final String pageHash;
+
+        DetailPage(String name, byte[] bytes, int bodyOffset) {
+            this.name = name;
+            this.canonical = StaticBytes.kept(bytes);
+            this.bodyOffset = bodyOffset;
+            this.pageHash = contentHash(bytes);
+        }
+
+        String etagFor(String query) {
+            return "\"" + pageHash + "-" + Integer.toHexString(query.hashCode()) + "\"";
+        }
+
+        // The same page under another alias only needs a new head
+        byte[] forQuery(String query) {
+            byte[] bytes = canonical.identity;
+            PageBuffer page = new PageBuffer(bytes.length + 256);
+            Pages.HEAD.render(page, query);
+            page.write(bytes, bodyOffset, bytes.length - bodyOffset);
+            return page.toByteArray();
+        }
+    }
+
+    private static String contentHash(byte[] bytes) {
+        try {
+            java.security.MessageDigest sha = java.security.MessageDigest.getInstance("SHA-256");
+            sha.update(bytes);
+            byte[] digest = sha.digest();
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Everything derived from one version of the CSV: rows, search and suggest indexes, numeric columns, home page and rendered pages.
+    // Nothing in here changes after construction except the lazily filled page and result caches.
+    static class DataSnapshot {
+        final CountryTable countries;
+        final SearchIndex index;
+        final SuggestIndex suggestions;
+        final NumericColumns numbers;
+        final TableSnapshot.Key key;
+        final StaticResource homePage;
+        final ResultCache cache = new ResultCache(resultCacheBytes);
+        private final java.util.concurrent.atomic.AtomicReferenceArray<DetailPage> detailPages;
+
+        DataSnapshot(CountryTable countries, TableSnapshot.Key key) {
+            this.countries = countries;
+            this.key = key;
+            this.index = SearchIndex.build(countries);
+            this.suggestions = SuggestIndex.build(countries);
+            this.numbers = new NumericColumns(countries);
+            this.homePage = new StaticResource(null, "text/html; charset=UTF-8", true, renderHomePage(countries.size()));
+            this.detailPages = new java.util.concurrent.atomic.AtomicReferenceArray<>(countries.size());
+        }
+
+        List<Row> search(String query) {
+            return rows(index.search(query));
+        }
+
+        // fuzzy=true adds close misspellings to the normal hits, fuzzy=false never looks for them,
+        // and by default they are only tried when the normal search finds nothing
+        int[] find(String query, String fuzzy) {
+            int[] rows = index.search(query);
+            if ("false".equals(fuzzy) || "0".equals(fuzzy)) return rows;
+            if ("true".equals(fuzzy) || "1".equals(fuzzy)) return SearchIndex.union(rows, index.fuzzy(query));
+            return rows.length == 0 ? index.fuzzy(query) : rows;
+        }
+
+        List<Row> rows(int[] ids) {
+            List<Row> results = new ArrayList<>(ids.length);
+            for (int id : ids) {
+                results.add(countries.row(id));
+            }
+            return results;
+        }
+
+        // Pages are rendered lazily on first hit; two threads racing just render the same bytes twice
+        DetailPage detailPage(int row) {
+            DetailPage page = detailPages.get(row);
+            if (page != null) return page;
+
+            Row country = countries.row(row);
+            String name = country.getOrDefault("Country", "Unknown");
+            PageBuffer out = new PageBuffer(65536);
+            Pages.HEAD.render(out, name);
+            int bodyOffset = out.size();
+            renderCountryDetail(out, country);
+            Pages.FOOT.render(out);
+
+            byte[] bytes = out.toByteArray();
+            page = new DetailPage(name, bytes, bodyOffset);
+            detailPages.set(row, page);
+            return page;
+        }
+    }
+
+    // The factbook's numeric text columns parsed once per snapshot into plain double arrays (NaN when
+    // missing), so filters and sorts never touch strings or boxed numbers.
+    static class NumericColumns {
+        static final String[] KEYS = {"population", "area", "gdp_per_capita", "median_age"};
+        static final String[] HEADERS = {
+            "People and Society: Population: total",
+            "Geography: Area: total ",
+            "Economy: Real GDP per capita: Real GDP per capita 2024",
+            "People and Society: Median age: total"
+        };
+
+        private final double[][] values;
+
+        NumericColumns(CountryTable countries) {
+            values = new double[KEYS.length][countries.size()];
+            for (int c = 0; c < KEYS.length; c++) {
+                int column = countries.column(HEADERS[c]);
+                for (int row = 0; row < countries.size(); row++) {
+                    values[c][row] = column < 0 ? Double.NaN : parse(countries.value(row, column));
+                }
+            }
+        }
+
+        double value(int column, int row) {
+            return values[column][row];
+        }
+
+        // First number in the text with thousands separators, "$" and units dropped:
+        // "338,289,857 (2024 est.)", "9,833,517 sq km", "$73,300 (2024 est.)", "38.5 years", "1.4 billion"
+        static double parse(String text) {
+            int i = 0;
+            int n = text.length();
+            while (i < n && !(Character.isDigit(text.charAt(i)) || (text.charAt(i) == '.' && i + 1 < n && Character.isDigit(text.charAt(i + 1))))) i++;
+            if (i == n) return Double.NaN;
+            boolean negative = i > 0 && text.charAt(i - 1) == '-';
+            // Digits are collected as an integer and scaled once at the end, so 15.2 stays 15.2
+            double digits = 0;
+            int decimals = -1;
+            for (; i < n; i++) {
+                char c = text.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    digits = digits * 10 + (c - '0');
+                    if (decimals >= 0) decimals++;
+                } else if (c == '.' && decimals < 0 && i + 1 < n && Character.isDigit(text.charAt(i + 1))) {
+                    decimals = 0;
+                } else if (c != ',' || decimals >= 0 || i + 1 >= n || !Character.isDigit(text.charAt(i + 1))) {
+                    break;
+                }
+            }
+            double value = decimals > 0 ? digits / Math.pow(10, decimals) : digits;
+            String rest = text.substring(i).stripLeading();
+            if (rest.startsWith("million")) value *= 1e6;
+            else if (rest.startsWith("billion")) value *= 1e9;
+            else if (rest.startsWith("trillion")) value *= 1e12;
+            return negative ? -value : value;
+        }
+
+        static String format(double value) {
+            if (Double.isNaN(value)) return "null";
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) return String.valueOf((long) value);
+            return String.valueOf(value);
+        }
+
+        static int key(String name) {
+            for (int c = 0; c < KEYS.length; c++) {
+                if (KEYS[c].equalsIgnoreCase(name.trim())) return c;
+            }
+            throw new IllegalArgumentException("Unknown numeric field: " + name.trim() + " (use one of " + String.join(", ", KEYS) + ")");
+        }
+
+        // Parsed form of where/sort/offset/limit; filters are parallel primitive arrays
+        static class Query {
+            static final String[] OPERATORS = {">=", "<=", "!=", ">", "<", "="};
+            // URL-safe spellings of the same operators, by index
+            static final String[] OPERATOR_WORDS = {"gte", "lte", "ne", "gt", "lt", "eq"};
+
+            final int[] filterColumns;
+            final int[] filterOps;
+            final double[] filterValues;
+            final int sortColumn;
+            final boolean descending;
+            final int offset;
+            final int limit;
+
+            private Query(int[] filterColumns, int[] filterOps, double[] filterValues, int sortColumn, boolean descending, int offset, int limit) {
+                this.filterColumns = filterColumns;
+                this.filterOps = filterOps;
+                this.filterValues = filterValues;
+                this.sortColumn = sortColumn;
+                this.descending = descending;
+                this.offset = offset;
+                this.limit = limit;
+            }
+
+            static Query parse(String where, String sort, int offset, int limit) {
+                String[] clauses = (where == null || where.isBlank()) ? new String[0] : where.split(",");
+                int[] columns = new int[clauses.length];
+                int[] ops = new int[clauses.length];
+                double[] operands = new double[clauses.length];
+                for (int i = 0; i < clauses.length; i++) {
+                    String clause = clauses[i];
+                    String name;
+                    String operand;
+                    int op = -1;
+                    String[] parts = clause.split(":");
+                    if (parts.length == 3) {
+                        op = Arrays.asList(OPERATOR_WORDS).indexOf(parts[1].trim().toLowerCase());
+                        name = parts[0];
+                        operand = parts[2];
+                    } else {
+                        int at = -1;
+                        for (int o = 0; o < OPERATORS.length && at < 0; o++) {
+                            at = clause.indexOf(OPERATORS[o]);
+                            if (at >= 0) op = o;
+                        }
+                        name = at > 0 ? clause.substring(0, at) : "";
+                        operand = at > 0 ? clause.substring(at + OPERATORS[op].length()) : "";
+                    }
+                    if (op < 0 || name.isBlank()) throw new IllegalArgumentException("Bad filter: " + clause.trim() + " (expected e.g. population:gt:1000000)");
+                    columns[i] = key(name);
+                    ops[i] = op;
+                    try {
+                        operands[i] = Double.parseDouble(operand.trim());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad number in filter: " + clause.trim());
+                    }
+                }
+
+                int sortColumn = -1;
+                boolean descending = false;
+                if (sort != null && !sort.isBlank()) {
+                    String s = sort.trim();
+                    descending = s.startsWith("-");
+                    if (descending || s.startsWith("+")) s = s.substring(1);
+                    sortColumn = key(s);
+                }
+                return new Query(columns, ops, operands, sortColumn, descending, offset, limit);
+            }
+
+            boolean matches(double[][] values, int row) {
+                for (int i = 0; i < filterColumns.length; i++) {
+                    double v = values[filterColumns[i]][row];
+                    if (Double.isNaN(v)) return false;
+                    double x = filterValues[i];
+                    boolean ok;
+                    switch (filterOps[i]) {
+                        case 0: ok = v >= x; break;
+                        case 1: ok = v <= x; break;
+                        case 2: ok = v != x; break;
+                        case 3: ok = v > x; break;
+                        case 4: ok = v < x; break;
+                        default: ok = v == x; break;
+                    }
+                    if (!ok) return false;
+                }
+                return true;
+            }
+        }
+
+        // Rows passing every filter; sorted queries keep only the best offset+limit in a bounded heap.
+        // total[0] gets the number of matching rows.
+        int[] run(Query query, int[] total) {
+            int rows = values[0].length;
+            int wanted = (int) Math.min((long) query.offset + query.limit, Integer.MAX_VALUE);
+            int count = 0;
+            if (query.sortColumn < 0) {
+                int[] out = new int[Math.min(query.limit, rows)];
+                int kept = 0;
+                for (int row = 0; row < rows; row++) {
+                    if (!query.matches(values, row)) continue;
+                    if (count >= query.offset && kept < out.length) out[kept++] = row;
+                    count++;
+                }
+                total[0] = count;
+                return kept == out.length ? out : Arrays.copyOf(out, kept);
+            }
+
+            // Min-heap on the sort key (max-heap when ascending) holding the best rows seen so far;
+            // rows without a value for the sort column can't be ranked, so they aren't counted either
+            double[] key = values[query.sortColumn];
+            double sign = query.descending ? 1 : -1;
+            int[] heap = new int[Math.min(wanted, rows)];
+            int size = 0;
+            for (int row = 0; row < rows; row++) {
+                if (!query.matches(values, row) || Double.isNaN(key[row])) continue;
+                count++;
+                if (heap.length == 0) continue;
+                if (size < heap.length) {
+                    heap[size] = row;
+                    siftUp(heap, size++, key, sign);
+                } else if (better(row, heap[0], key, sign)) {
+                    heap[0] = row;
+                    siftDown(heap, size, key, sign);
+                }
+            }
+            total[0] = count;
+
+            // Pop worst-first into the tail of the output to get best-first order
+            int[] ranked = new int[size];
+            for (int i = size - 1; i >= 0; i--) {
+                ranked[i] = heap[0];
+                heap[0] = heap[--size];
+                siftDown(heap, size, key, sign);
+            }
+            if (query.offset >= ranked.length) return new int[0];
+            return Arrays.copyOfRange(ranked, query.offset, ranked.length);
+        }
+
+        // Higher signed key wins; ties go to the earlier row so results are stable
+        private static boolean better(int a, int b, double[] key, double sign) {
+            double ka = key[a] * sign;
+            double kb = key[b] * sign;
+            return ka > kb || (ka == kb && a < b);
+        }
+
+        private static void siftUp(int[] heap, int i, double[] key, double sign) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!better(heap[parent], heap[i], key, sign)) break;
+                int t = heap[parent];
+                heap[parent] = heap[i];
+                heap[i] = t;
+                i = parent;
+            }
+        }
+
+        private static void siftDown(int[] heap, int size, double[] key, double sign) {
+            int i = 0;
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= size) break;
+                int worst = left;
+                int right = left + 1;
+                if (right < size && better(heap[left], heap[right], key, sign)) worst = right;
+                if (!better(heap[i], heap[worst], key, sign)) break;
+                int t = heap[i];
+                heap[i] = heap[worst];
+                heap[worst] = t;
+                i = worst;
+            }
+        }
+    }
+
+    // What a search produced: the matching rows and/or the finished response body, plus the total
+    // match count for X-Total-Count when the body is only one page of the results.
+    static class CachedResult {
+        final int[] rows;
+        final StaticBytes body;
+        final int total;
+
+        CachedResult(int[] rows, StaticBytes body, int total) {
+            this.rows = rows;
+            this.body = body;
+            this.total = total;
+        }
+
+        long weight() {
+            return 64 + (rows != null ? rows.length * 4L : 0) + (body != null ? body.identity.length : 0);
+        }
+    }
+
+    // Size-bounded LRU of search results for one DataSnapshot. Keys are spread over segments, each a
+    // small access-ordered LinkedHashMap behind its own lock, so popular queries rarely contend.
+    // A reload swaps in a new snapshot and with it an empty cache, so nothing is ever stale.
+    static class ResultCache {
+        static final java.util.concurrent.atomic.LongAdder HITS = new java.util.concurrent.atomic.LongAdder();
+        static final java.util.concurrent.atomic.LongAdder MISSES = new java.util.concurrent.atomic.LongAdder();
+        static final java.util.concurrent.atomic.LongAdder EVICTIONS = new java.util.concurrent.atomic.LongAdder();
+        private static final int SEGMENTS = 16;
+
+        private final Segment[] segments = new Segment[SEGMENTS];
+
+        ResultCache(long maxBytes) {
+            for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+
+        CachedResult get(String key) {
+            CachedResult result = segment(key).get(key);
+            if (result != null) {
+                HITS.increment();
+            } else {
+                MISSES.increment();
+            }
+            return result;
+        }
+
+        void put(String key, CachedResult result) {
+            segment(key).put(key, result);
+        }
+
+        // The biggest body put() would keep under this key; anything larger is dropped
+        int maxBody(String key) {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, segment(key).maxBytes - 64 - 2L * key.length()));
+        }
+
+        int size() {
+            int size = 0;
+            for (Segment segment : segments) size += segment.size();
+            return size;
+        }
+
+        long bytes() {
+            long bytes = 0;
+            for (Segment segment : segments) bytes += segment.bytes();
+            return bytes;
+        }
+
+        private Segment segment(String key) {
+            int h = key.hashCode();
+            return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+        }
+
+        private static class Segment {
+            private final LinkedHashMap<String, CachedResult> entries = new LinkedHashMap<>(16, 0.75f, true);
+            private final long maxBytes;
+            private long bytes;
+
+            Segment(long maxBytes) {
+                this.maxBytes = maxBytes;
+            }
+
+            synchronized CachedResult get(String key) {
+                return entries.get(key);
+            }
+
+            synchronized void put(String key, CachedResult result) {
+                long weight = weight(key, result);
+                // One entry bigger than a segment would just flush everything else out
+                if (weight > maxBytes) return;
+                CachedResult previous = entries.put(key, result);
+                if (previous != null) bytes -= weight(key, previous);
+                bytes += weight;
+                Iterator<Map.Entry<String, CachedResult>> eldest = entries.entrySet().iterator();
+                while (bytes > maxBytes && eldest.hasNext()) {
+                    Map.Entry<String, CachedResult> evicted = eldest.next();
+                    bytes -= weight(evicted.getKey(), evicted.getValue());
+                    eldest.remove();
+                    EVICTIONS.increment();
+                }
+            }
+
+            private static long weight(String key, CachedResult result) {
+                return 2L * key.length() + result.weight();
+            }
+
+            synchronized int size() {
+                return entries.size();
+            }
+
+            synchronized long bytes() {
+                return bytes;
+            }
+        }
+    }
+
+    // Name index built once per DataSnapshot so a search never has to lowercase and scan every row.
+    // Exact names go in a hash map, substrings are found through 1/2/3-gram posting lists.
+    static class SearchIndex {
+        private static final int[] NONE = new int[0];
+
+        private final String[] names;
+        private final String[] longNames;
+        private final int[] allRows;
+        private final Map<String, int[]> exact;
+        private final Map<Long, int[]> grams;
+
+        private SearchIndex(String[] names, String[] longNames, Map<String, int[]> exact, Map<Long, int[]> grams) {
+            this.names = names;
+            this.longNames = longNames;
+            this.exact = exact;
+            this.grams = grams;
+            this.allRows = new int[names.length];
+            for (int i = 0; i < allRows.length; i++) allRows[i] = i;
+        }
+
+        static SearchIndex build(CountryTable rows) {
+            int n = rows.size();
+            String[] names = new String[n];
+            String[] longNames = new String[n];
+            Map<String, List<Integer>> exactLists = new HashMap<>();
+            Map<Long, List<Integer>> gramLists = new HashMap<>();
+
+            for (int row = 0; row < n; row++) {
+                names[row] = rows.row(row).getOrDefault("Country", "").toLowerCase();
+                longNames[row] = rows.row(row).getOrDefault("Government: Country name: conventional long form", "").toLowerCase();
+                addPosting(exactLists.computeIfAbsent(names[row], k -> new ArrayList<>()), row);
+                addPosting(exactLists.computeIfAbsent(longNames[row], k -> new ArrayList<>()), row);
+                addGrams(gramLists, names[row], row);
+                addGrams(gramLists, longNames[row], row);
+            }
+
+            Map<String, int[]> exact = new HashMap<>();
+            for (Map.Entry<String, List<Integer>> e : exactLists.entrySet()) exact.put(e.getKey(), toArray(e.getValue()));
+            Map<Long, int[]> grams = new HashMap<>();
+            for (Map.Entry<Long, List<Integer>> e : gramLists.entrySet()) grams.put(e.getKey(), toArray(e.getValue()));
+            return new SearchIndex(names, longNames, exact, grams);
+        }
+
+        // Same contract as the old scan: every exact match in row order, otherwise every partial match in row order
+        int[] search(String query) {
+            String q = query.toLowerCase().trim();
+            int[] hits = exact.get(q);
+            if (hits != null) return hits;
+            if (q.isEmpty()) return allRows;
+            if (q.length() <= 3) {
+                // Short queries are their own gram, so the posting list is already the answer
+                int[] posting = grams.get(gramKey(q, 0, q.length()));
+                return posting != null ? posting : NONE;
+            }
+
+            // Intersect the trigram postings, then confirm with a real contains
+            int[] candidates = null;
+            for (int i = 0; i + 3 <= q.length(); i++) {
+                int[] posting = grams.get(gramKey(q, i, 3));
+                if (posting == null) return NONE;
+                if (candidates == null) {
+                    candidates = posting;
+                } else {
+                    candidates = posting.length < candidates.length ? intersect(posting, candidates) : intersect(candidates, posting);
+                }
+                if (candidates.length == 0) return NONE;
+            }
+
+            int[] matches = new int[candidates.length];
+            int count = 0;
+            for (int row : candidates) {
+                if (names[row].contains(q) || longNames[row].contains(q)) matches[count++] = row;
+            }
+            return count == matches.length ? matches : Arrays.copyOf(matches, count);
+        }
+
+        // Rows whose name or long name is within a few edits of the query, closest first. Candidates
+        // come from the trigram postings, so only rows sharing enough trigrams are ever compared.
+        int[] fuzzy(String query) {
+            String q = query.toLowerCase().trim();
+            if (q.length() < 3) return NONE;
+            int maxDistance = q.length() <= 4 ? 1 : q.length() <= 8 ? 2 : 3;
+            int gramCount = q.length() - 2;
+            // Each edit can break at most three trigrams
+            int minShared = Math.max(1, gramCount - 3 * maxDistance);
+
+            int[] shared = new int[names.length];
+            int[] touched = new int[names.length];
+            int touchedCount = 0;
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i < gramCount; i++) {
+                long key = gramKey(q, i, 3);
+                if (!seen.add(key)) continue;
+                int[] posting = grams.get(key);
+                if (posting == null) continue;
+                for (int row : posting) {
+                    if (shared[row]++ == 0) touched[touchedCount++] = row;
+                }
+            }
+
+            int[] distances = new int[touchedCount];
+            int[] matches = new int[touchedCount];
+            int count = 0;
+            for (int i = 0; i < touchedCount; i++) {
+                int row = touched[i];
+                if (shared[row] < minShared) continue;
+                int distance = Math.min(boundedDistance(q, names[row], maxDistance), boundedDistance(q, longNames[row], maxDistance));
+                if (distance > maxDistance) continue;
+                distances[count] = distance;
+                matches[count++] = row;
+            }
+
+            // Insertion sort by distance, then row; there are only ever a handful of matches
+            for (int i = 1; i < count; i++) {
+                int row = matches[i];
+                int distance = distances[i];
+                int j = i - 1;
+                while (j >= 0 && (distances[j] > distance || (distances[j] == distance && matches[j] > row))) {
+                    matches[j + 1] = matches[j];
+                    distances[j + 1] = distances[j];
+                    j--;
+                }
+                matches[j + 1] = row;
+                distances[j + 1] = distance;
+            }
+            return Arrays.copyOf(matches, count);
+        }
+
+        // Levenshtein distance, giving up with max + 1 as soon as it must exceed max
+        static int boundedDistance(String a, String b, int max) {
+            if (Math.abs(a.length() - b.length()) > max) return max + 1;
+            int[] previous = new int[b.length() + 1];
+            int[] current = new int[b.length() + 1];
+            for (int j = 0; j <= b.length(); j++) previous[j] = j;
+            for (int i = 1; i <= a.length(); i++) {
+                current[0] = i;
+                int rowMin = current[0];
+                char ca = a.charAt(i - 1);
+                for (int j = 1; j <= b.length(); j++) {
+                    int cost = ca == b.charAt(j - 1) ? 0 : 1;
+                    current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                    rowMin = Math.min(rowMin, current[j]);
+                }
+                if (rowMin > max) return max + 1;
+                int[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            return previous[b.length()];
+        }
+
+        // Keeps first's order and appends anything from second it doesn't already have
+        static int[] union(int[] first, int[] second) {
+            if (second.length == 0) return first;
+            Set<Integer> seen = new HashSet<>();
+            int[] out = Arrays.copyOf(first, first.length + second.length);
+            for (int row : first) seen.add(row);
+            int count = first.length;
+            for (int row : second) {
+                if (seen.add(row)) out[count++] = row;
+            }
+            return Arrays.copyOf(out, count);
+        }
+
+        private static void addGrams(Map<Long, List<Integer>> gramLists, String s, int row) {
+            for (int len = 1; len <= 3; len++) {
+                for (int i = 0; i + len <= s.length(); i++) {
+                    addPosting(gramLists.computeIfAbsent(gramKey(s, i, len), k -> new ArrayList<>()), row);
+                }
+            }
+        }
+
+        // Rows are added in ascending order, so only the tail needs checking for duplicates
+        private static void addPosting(List<Integer> posting, int row) {
+            if (posting.isEmpty() || posting.get(posting.size() - 1) != row) posting.add(row);
+        }
+
+        // Packs up to three chars plus the gram length into one long
+        private static long gramKey(String s, int start, int len) {
+            long key = len;
+            for (int i = start; i < start + len; i++) key = (key << 16) | s.charAt(i);
+            return key;
+        }
+
+        private static int[] intersect(int[] small, int[] large) {
+            int[] out = new int[small.length];
+            int count = 0;
+            int j = 0;
+            for (int row : small) {
+                while (j < large.length && large[j] < row) j++;
+                if (j == large.length) break;
+                if (large[j] == row) out[count++] = row;
+            }
+            return Arrays.copyOf(out, count);
+        }
+
+        private static int[] toArray(List<Integer> list) {
+            int[] out = new int[list.size()];
+            for (int i = 0; i < out.length; i++) out[i] = list.get(i);
+            return out;
+        }
+    }
+
+    // Sorted prefix arrays for typeahead. Country names are searched first, then long form names and
+    // every later word of either ("states" finds United States), each by binary search for the prefix.
+    static class SuggestIndex {
+        private static final int[] NONE = new int[0];
+
+        private final String[] names;
+        private final String[] nameKeys;
+        private final int[] nameRows;
+        private final String[] otherKeys;
+        private final int[] otherRows;
+
+        private SuggestIndex(String[] names, List<String> nameKeys, List<Integer> nameRows, List<String> otherKeys, List<Integer> otherRows) {
+            this.names = names;
+            Integer[] order = sortedOrder(nameKeys);
+            this.nameKeys = new String[order.length];
+            this.nameRows = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                this.nameKeys[i] = nameKeys.get(order[i]);
+                this.nameRows[i] = nameRows.get(order[i]);
+            }
+            order = sortedOrder(otherKeys);
+            this.otherKeys = new String[order.length];
+            this.otherRows = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                this.otherKeys[i] = otherKeys.get(order[i]);
+                this.otherRows[i] = otherRows.get(order[i]);
+            }
+        }
+
+        static SuggestIndex build(CountryTable rows) {
+            int n = rows.size();
+            String[] names = new String[n];
+            List<String> nameKeys = new ArrayList<>(n);
+            List<Integer> nameRows = new ArrayList<>(n);
+            List<String> otherKeys = new ArrayList<>(n * 4);
+            List<Integer> otherRows = new ArrayList<>(n * 4);
+            for (int row = 0; row < n; row++) {
+                Row country = rows.row(row);
+                names[row] = country.getOrDefault("Country", "");
+                String name = names[row].toLowerCase().trim();
+                String longName = country.getOrDefault("Government: Country name: conventional long form", "").toLowerCase().trim();
+                if (name.isEmpty()) continue;
+                nameKeys.add(name);
+                nameRows.add(row);
+                addWordStarts(otherKeys, otherRows, name, row);
+                if (!longName.isEmpty() && !longName.equals("none") && !longName.equals(name)) {
+                    otherKeys.add(longName);
+                    otherRows.add(row);
+                    addWordStarts(otherKeys, otherRows, longName, row);
+                }
+            }
+            return new SuggestIndex(names, nameKeys, nameRows, otherKeys, otherRows);
+        }
+
+        String name(int row) {
+            return names[row];
+        }
+
+        // Up to limit distinct rows, name matches first, each group in alphabetical order
+        int[] suggest(String prefix, int limit) {
+            String p = prefix.toLowerCase().trim();
+            if (p.isEmpty() || limit == 0) return NONE;
+            int[] out = new int[limit];
+            int count = collect(nameKeys, nameRows, p, out, 0);
+            if (count < limit) count = collect(otherKeys, otherRows, p, out, count);
+            return count == limit ? out : Arrays.copyOf(out, count);
+        }
+
+        private static int collect(String[] keys, int[] rows, String prefix, int[] out, int count) {
+            int i = Arrays.binarySearch(keys, prefix);
+            if (i < 0) i = -i - 1;
+            // Several keys can point at one row, so cap how far a prefix like "a" can make us walk
+            int budget = out.length * 16;
+            for (; i < keys.length && count < out.length && budget-- > 0 && keys[i].startsWith(prefix); i++) {
+                if (!contains(out, count, rows[i])) out[count++] = rows[i];
+            }
+            return count;
+        }
+
+        private static boolean contains(int[] rows, int count, int row) {
+            for (int i = 0; i < count; i++) {
+                if (rows[i] == row) return true;
+            }
+            return false;
+        }
+
+        private static void addWordStarts(List<String> keys, List<Integer> rows, String s, int row) {
+            for (int i = 1; i < s.length(); i++) {
+                if (s.charAt(i - 1) == ' ' && s.charAt(i) != ' ') {
+                    keys.add(s.substring(i));
+                    rows.add(row);
+                }
+            }
+        }
+
+        private static Integer[] sortedOrder(List<String> keys) {
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> keys.get(a).compareTo(keys.get(b)));
+            return order;
+        }
+    }
+
+    // Column-oriented store for the loaded CSV. Every distinct value is kept once in a dictionary
+    // and each column is an int array of dictionary ids indexed by row id.
+    static class CountryTable {
+        final String[] headers;
+        private final String[] dictionary;
+        private final int[][] columns;
+        private final Map<String, Integer> columnIndex;
+        // One column per distinct header, in first-seen order; a repeated header reads its last column
+        private final String[] fieldNames;
+        private final int[] fieldColumns;
+        private final int size;
+        // Every dictionary value and field name escaped for HTML and encoded as UTF-8 once per table,
+        // plus the escaped trimmed value (the same array when trimming changes nothing)
+        private final byte[][] html;
+        private final byte[][] htmlTrimmed;
+        private final byte[][] htmlFieldNames;
+
+        private CountryTable(String[] headers, String[] dictionary, int[][] columns, int size) {
+            this.headers = headers;
+            this.dictionary = dictionary;
+            this.columns = columns;
+            this.size = size;
+            this.html = new byte[dictionary.length][];
+            this.htmlTrimmed = new byte[dictionary.length][];
+            for (int id = 0; id < dictionary.length; id++) {
+                String trimmed = dictionary[id].trim();
+                html[id] = escapeHtmlUtf8(dictionary[id]);
+                htmlTrimmed[id] = trimmed.length() == dictionary[id].length() ? html[id] : escapeHtmlUtf8(trimmed);
+            }
+            this.columnIndex = new HashMap<>();
+            List<String> names = new ArrayList<>();
+            for (int col = 0; col < headers.length; col++) {
+                if (columnIndex.put(headers[col], col) == null) names.add(headers[col]);
+            }
+            this.fieldNames = names.toArray(new String[0]);
+            this.fieldColumns = new int[fieldNames.length];
+            for (int f = 0; f < fieldNames.length; f++) fieldColumns[f] = columnIndex.get(fieldNames[f]);
+            this.htmlFieldNames = new byte[fieldNames.length][];
+            for (int f = 0; f < fieldNames.length; f++) htmlFieldNames[f] = escapeHtmlUtf8(fieldNames[f]);
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Column for a header, or -1 if the CSV doesn't have it
+        int column(String header) {
+            Integer col = columnIndex.get(header);
+            return col != null ? col : -1;
+        }
+
+        String value(int row, int col) {
+            return dictionary[columns[col][row]];
+        }
+
+        byte[] html(int row, int col) {
+            return html[columns[col][row]];
+        }
+
+        byte[] htmlTrimmed(int row, int col) {
+            return htmlTrimmed[columns[col][row]];
+        }
+
+        Row row(int id) {
+            return new Row(this, id);
+        }
+
+        // Rows are fed one field at a time; short rows are padded with "" and extra fields dropped
+        static class Builder {
+            private final String[] headers;
+            private final Map<String, Integer> ids = new HashMap<>();
+            private final List<String> dictionary = new ArrayList<>();
+            private int[][] columns;
+            private int size;
+            private int col;
+
+            Builder(String[] headers) {
+                this.headers = headers;
+                this.columns = new int[headers.length][256];
+                intern("");
+            }
+
+            void add(String value) {
+                if (col < headers.length) columns[col][size] = intern(value);
+                col++;
+            }
+
+            void endRow() {
+                for (; col < headers.length; col++) columns[col][size] = 0;
+                col = 0;
+                size++;
+                if (size == capacity()) {
+                    for (int c = 0; c < columns.length; c++) columns[c] = Arrays.copyOf(columns[c], size * 2);
+                }
+            }
+
+            CountryTable build() {
+                int[][] trimmed = new int[columns.length][];
+                for (int c = 0; c < columns.length; c++) trimmed[c] = Arrays.copyOf(columns[c], size);
+                return new CountryTable(headers, dictionary.toArray(new String[0]), trimmed, size);
+            }
+
+            private int capacity() {
+                return columns.length > 0 ? columns[0].length : Integer.MAX_VALUE;
+            }
+
+            private int intern(String value) {
+                Integer id = ids.get(value);
+                if (id == null) {
+                    id = dictionary.size();
+                    ids.put(value, id);
+                    dictionary.add(value);
+                }
+                return id;
+            }
+        }
+    }
+
+    // Read-only view of one row; fields iterate like the old per-row map did
+    static final class Row {
+        private static final byte[] EMPTY_HTML = new byte[0];
+
+        private final CountryTable table;
+        final int id;
+
+        Row(CountryTable table, int id) {
+            this.table = table;
+            this.id = id;
+        }
+
+        String getOrDefault(String header, String fallback) {
+            int col = table.column(header);
+            return col >= 0 ? table.value(id, col) : fallback;
+        }
+
+        int fieldCount() {
+            return table.fieldNames.length;
+        }
+
+        String header(int field) {
+            return table.fieldNames[field];
+        }
+
+        String value(int field) {
+            return table.value(id, table.fieldColumns[field]);
+        }
+
+        // Pre-escaped UTF-8 for templates; a missing column gives back the fallback String to escape instead
+        Object html(String header, String fallback) {
+            int col = table.column(header);
+            return col >= 0 ? table.html(id, col) : fallback;
+        }
+
+        byte[] htmlTrimmed(String header) {
+            int col = table.column(header);
+            return col >= 0 ? table.htmlTrimmed(id, col) : EMPTY_HTML;
+        }
+
+        byte[] htmlTrimmed(int field) {
+            return table.htmlTrimmed(id, table.fieldColumns[field]);
+        }
+
+        byte[] htmlHeader(int field) {
+            return table.htmlFieldNames[field];
+        }
+    }
+
+    // Binary copy of a parsed CountryTable, so a restart can skip CSV parsing entirely.
+    // It is tied to the CSV by size, mtime and CRC32C, and read back through a memory-mapped channel.
+    // Layout: magic, version, key, headers, dictionary, row count, then every column's value ids.
+    static class TableSnapshot {
+        private static final int MAGIC = 0x4E41544C; // "NATL"
+        private static final int VERSION = 1;
+
+        static class Key {
+            final long size;
+            final long modified;
+            final long hash;
+
+            Key(long size, long modified, long hash) {
+                this.size = size;
+                this.modified = modified;
+                this.hash = hash;
+            }
+
+            static Key of(Path csv) throws IOException {
+                java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+                try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(csv, StandardOpenOption.READ)) {
+                    crc.update(channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                }
+                return new Key(Files.size(csv), Files.getLastModifiedTime(csv).toMillis(), crc.getValue());
+            }
+
+            boolean matches(long size, long modified, long hash) {
+                return this.size == size && this.modified == modified && this.hash == hash;
+            }
+
+            public boolean equals(Object other) {
+                return other instanceof Key && ((Key) other).matches(size, modified, hash);
+            }
+
+            public int hashCode() {
+                return Long.hashCode(hash);
+            }
+        }
+
+        // Returns null when there is no usable snapshot, so the caller falls back to the CSV
+        static CountryTable read(Path path, Key key) {
+            if (!Files.isRegularFile(path)) return null;
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path, StandardOpenOption.READ)) {
+                java.nio.ByteBuffer in = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+                if (!key.matches(in.getLong(), in.getLong(), in.getLong())) return null;
+
+                String[] headers = readStrings(in);
+                String[] dictionary = readStrings(in);
+                int size = in.getInt();
+                int[][] columns = new int[headers.length][size];
+                java.nio.IntBuffer ids = in.asIntBuffer();
+                for (int[] column : columns) ids.get(column);
+                for (int[] column : columns) {
+                    for (int id : column) {
+                        if (id < 0 || id >= dictionary.length) return null;
+                    }
+                }
+                return new CountryTable(headers, dictionary, columns, size);
+            } catch (IOException | RuntimeException e) {
+                Log.warn("Ignoring unreadable snapshot " + path + ": " + e);
+                return null;
+            }
+        }
+
+        // Best effort: a failed write only costs the next start a CSV parse
+        static void write(Path path, Key key, CountryTable table) {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(key.size);
+                out.writeLong(key.modified);
+                out.writeLong(key.hash);
+                writeStrings(out, table.headers);
+                writeStrings(out, table.dictionary);
+                out.writeInt(table.size);
+                for (int[] column : table.columns) {
+                    for (int id : column) out.writeInt(id);
+                }
+            } catch (IOException e) {
+                Log.warn("Could not write snapshot " + path + ": " + e);
+                return;
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Log.warn("Could not write snapshot " + path + ": " + e);
+            }
+        }
+
+        private static String[] readStrings(java.nio.ByteBuffer in) {
+            String[] strings = new String[in.getInt()];
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < strings.length; i++) {
+                int length = in.getInt();
+                if (length > scratch.length) scratch = new byte[Math.max(length, scratch.length * 2)];
+                in.get(scratch, 0, length);
+                strings[i] = new String(scratch, 0, length, java.nio.charset.StandardCharsets.UTF_8);
+            }
+            return strings;
+        }
+
+        private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+            out.writeInt(strings.length);
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    // Everything below this point is for the CVS and JSON files.
+    // fields are the keys written out and columns the CSV headers they read from; null means every column
+    static void writeResultsJSON(JsonWriter json, List<Row> results, String[] fields, String[] columns) throws IOException {
+        json.raw('[');
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) json.raw(',');
+            json.raw('{');
+            Row country = results.get(i);
+            if (fields == null) {
+                for (int f = 0; f < country.fieldCount(); f++) {
+                    if (f > 0) json.raw(',');
+                    json.string(country.header(f));
+                    json.raw(':');
+                    json.string(country.value(f));
+                }
+            } else {
+                for (int f = 0; f < fields.length; f++) {
+                    if (f > 0) json.raw(',');
+                    json.string(fields[f]);
+                    json.raw(':');
+                    json.string(country.getOrDefault(columns[f], ""));
+                }
+            }
+            json.raw('}');
+        }
+        json.raw(']');
+    }
+
+    // Streams JSON straight into the response as UTF-8, escaping each string in a single pass.
+    // A response that fits in one buffer goes out with an exact Content-Length, anything bigger
+    // is sent chunked as the buffer fills. Buffers are pooled and reused across requests.
+    static class JsonWriter implements Closeable {
+        static final int BUFFER_SIZE = 16 * 1024;
+        private static final int MAX_POOLED = 64;
+        private static final java.util.concurrent.ConcurrentLinkedQueue<byte[]> BUFFERS = new java.util.concurrent.ConcurrentLinkedQueue<>();
+        private static final byte[] HEX = "0123456789abcdef".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+
+        private final HttpExchange exchange;
+        private final int status;
+        private final Encoding encoding;
+        private final byte[] buf;
+        private int pos;
+        private OutputStream out;
+        // Set by capture(): the body is collected here instead of sent, unless it grows past captureLimit
+        private ByteArrayOutputStream captured;
+        private int captureLimit;
+
+        JsonWriter(HttpExchange exchange) {
+            this(exchange, 200);
+        }
+
+        JsonWriter(HttpExchange exchange, int status) {
+            this.exchange = exchange;
+            this.status = status;
+            this.encoding = exchange != null ? Encoding.negotiate(exchange) : Encoding.IDENTITY;
+            byte[] pooled = BUFFERS.poll();
+            this.buf = pooled != null ? pooled : new byte[BUFFER_SIZE];
+        }
+
+        // Writes to a plain stream with no HTTP framing, e.g. for the benchmarks
+        JsonWriter(OutputStream out) {
+            this(null, 200);
+            this.out = out;
+        }
+
+        void raw(char c) throws IOException {
+            if (pos == buf.length) flush();
+            buf[pos++] = (byte) c;
+        }
+
+        // For numbers, booleans and other ASCII literals that need no escaping
+        void raw(String literal) throws IOException {
+            for (int i = 0; i < literal.length(); i++) raw(literal.charAt(i));
+        }
+
+        void string(String s) throws IOException {
+            raw('"');
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                // Worst case per char is a 6 byte unicode escape
+                if (pos + 6 > buf.length) flush();
+                char c = s.charAt(i);
+                if (c >= 0x20 && c < 0x80) {
+                    if (c == '"' || c == '\\') buf[pos++] = '\\';
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x20) {
+                    buf[pos++] = '\\';
+                    switch (c) {
+                        case '\n': buf[pos++] = 'n'; break;
+                        case '\r': buf[pos++] = 'r'; break;
+                        case '\t': buf[pos++] = 't'; break;
+                        case '\b': buf[pos++] = 'b'; break;
+                        case '\f': buf[pos++] = 'f'; break;
+                        default:
+                            buf[pos++] = 'u';
+                            buf[pos++] = '0';
+                            buf[pos++] = '0';
+                            buf[pos++] = HEX[c >> 4];
+                            buf[pos++] = HEX[c & 0xF];
+                    }
+                } else {
+                    int cp = s.codePointAt(i);
+                    if (cp > 0xFFFF) i++;
+                    pos = utf8(cp, buf, pos);
+                }
+            }
+            raw('"');
+        }
+
+        // Keep the body for the caller (e.g. the result cache) rather than sending it, as long as it stays
+        // within limit bytes; a bigger body is sent as usual, starting with what was kept so far
+        void capture(int limit) {
+            captured = new ByteArrayOutputStream(BUFFER_SIZE);
+            captureLimit = limit;
+        }
+
+        // The whole body after close(), if it was captured and never sent
+        byte[] captured() {
+            return captured != null ? captured.toByteArray() : null;
+        }
+
+        private void flush() throws IOException {
+            if (out == null && captured != null) {
+                if (captured.size() + pos <= captureLimit) {
+                    captured.write(buf, 0, pos);
+                    pos = 0;
+                    return;
+                }
+                startChunked();
+                captured.writeTo(out);
+                captured = null;
+            }
+            if (out == null) startChunked();
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+
+        // Length is still unknown, so switch to chunked transfer, compressed if the client allows
+        private void startChunked() throws IOException {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            if (encoding != Encoding.IDENTITY) exchange.getResponseHeaders().set("Content-Encoding", encoding.token);
+            exchange.sendResponseHeaders(status, 0);
+            out = encoding.wrap(exchange.getResponseBody());
+        }
+
+        public void close() throws IOException {
+            try {
+                if (out == null && captured != null) {
+                    flush();
+                    // Everything fit, so it's the caller's to send
+                    if (out == null) return;
+                }
+                if (out == null && encoding != Encoding.IDENTITY && pos >= Encoding.MIN_SIZE) {
+                    // The whole body fit in the buffer, so compress it here and still send an exact length
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(pos / 4 + 64);
+                    try (OutputStream zip = encoding.wrap(compressed)) {
+                        zip.write(buf, 0, pos);
+                    }
+                    exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+                    exchange.getResponseHeaders().set("Content-Encoding", encoding.token);
+                    exchange.sendResponseHeaders(status, compressed.size());
+                    out = exchange.getResponseBody();
+                    compressed.writeTo(out);
+                    out.close();
+                    return;
+                }
+                if (out == null) {
+                    exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+                    exchange.sendResponseHeaders(status, pos == 0 ? -1 : pos);
+                    out = exchange.getResponseBody();
+                }
+                out.write(buf, 0, pos);
+                out.close();
+            } finally {
+                pos = 0;
+                if (BUFFERS.size() < MAX_POOLED) BUFFERS.offer(buf);
+            }
+        }
+    }
+
+    // One scan; a string with nothing to escape comes back as the same instance
+    static String escapeHtml(String str) {
+        int length = str.length();
+        int i = 0;
+        while (i < length && htmlEntity(str.charAt(i)) == null) i++;
+        if (i == length) return str;
+        StringBuilder out = new StringBuilder(length + (length >> 3) + 16);
+        // Copy the plain runs between special characters in bulk
+        int start = 0;
+        for (; i < length; i++) {
+            String entity = htmlEntity(str.charAt(i));
+            if (entity == null) continue;
+            out.append(str, start, i).append(entity);
+            start = i + 1;
+        }
+        return out.append(str, start, length).toString();
+    }
+
+    private static String htmlEntity(char c) {
+        switch (c) {
+            case '&': return "&amp;";
+            case '<': return "&lt;";
+            case '>': return "&gt;";
+            case '"': return "&quot;";
+            case '\'': return "&#39;";
+            default: return null;
+        }
+    }
+
+    // HTML-escaped UTF-8 in one pass, without an intermediate escaped String
+    static byte[] escapeHtmlUtf8(String str) {
+        PageBuffer out = new PageBuffer(str.length() + 16);
+        out.escaped(str);
+        return out.toByteArray();
+    }
+
+    // Loads from the binary snapshot when it matches the CSV, otherwise parses the CSV and writes a new snapshot
+    static DataSnapshot loadCSV(Path csv, TableSnapshot.Key key) throws IOException {
+        Path snapshot = csv.resolveSibling(csv.getFileName() + ".snapshot");
+        CountryTable table = TableSnapshot.read(snapshot, key);
+        if (table != null) {
+            Log.info("Loaded snapshot " + snapshot);
+        } else {
+            table = parseCSV(csv);
+            TableSnapshot.write(snapshot, key, table);
+        }
+        return new DataSnapshot(table, key);
+    }
+
+    // Builds a complete new snapshot off to the side and swaps it in with one volatile write.
+    // Requests already running finish on the snapshot they started with. Returns false if the CSV is unchanged.
+    private static synchronized boolean reloadCSV() throws IOException {
+        Path csv = Path.of(csvPath);
+        TableSnapshot.Key key = TableSnapshot.Key.of(csv);
+        if (key.equals(data.key)) return false;
+        DataSnapshot next = loadCSV(csv, key);
+        data = next;
+        Log.info("Reloaded " + csvPath + ": " + next.countries.size() + " countries.");
+        return true;
+    }
+
+    private static void watchCSV(Path csv) throws IOException {
+        Path dir = csv.toAbsolutePath().getParent();
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (csv.getFileName().equals(event.context())) changed = true;
+                    }
+                    key.reset();
+                    if (!changed) continue;
+
+                    // Give the writer a moment to finish and fold its burst of events into one reload
+                    Thread.sleep(500);
+                    while ((key = watcher.poll()) != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                    try {
+                        reloadCSV();
+                    } catch (IOException | RuntimeException e) {
+                        Log.error("Reload failed, still serving the previous data: " + e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "csv-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        Log.info("Watching " + csv + " for changes.");
+    }
+
+    // POST /admin/reload with "Authorization: Bearer <ADMIN_TOKEN>"; without ADMIN_TOKEN the endpoint doesn't exist
+    static class ReloadHandler implements HttpHandler {
+        private final byte[] token;
+
+        ReloadHandler(String token) {
+            this.token = (token == null || token.isBlank()) ? null : ("Bearer " + token.trim()).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            if (token == null) {
+                sendJsonError(exchange, 404, "Not found");
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendJsonError(exchange, 405, "Use POST");
+                return;
+            }
+            String auth = exchange.getRequestHeaders().getFirst("Authorization");
+            if (auth == null || !java.security.MessageDigest.isEqual(token, auth.getBytes(java.nio.charset.StandardCharsets.UTF_8))) {
+                sendJsonError(exchange, 401, "Unauthorized");
+                return;
+            }
+
+            boolean reloaded;
+            try {
+                reloaded = reloadCSV();
+            } catch (IOException | RuntimeException e) {
+                sendJsonError(exchange, 500, "Reload failed, still serving the previous data: " + e.getMessage());
+                return;
+            }
+            try (JsonWriter json = new JsonWriter(exchange)) {
+                json.raw('{');
+                json.string("reloaded");
+                json.raw(':');
+                json.raw(String.valueOf(reloaded));
+                json.raw(',');
+                json.string("countries");
+                json.raw(':');
+                json.raw(String.valueOf(data.countries.size()));
+                json.raw('}');
+            }
+        }
+    }
+
+    static CountryTable parseCSV(Path path) throws IOException {
+        // newDecoder() reports malformed UTF-8 instead of silently replacing it
+        try (Reader reader = new InputStreamReader(Files.newInputStream(path), java.nio.charset.StandardCharsets.UTF_8.newDecoder())) {
+            return new CsvParser().parse(reader);
+        }
+    }
+
+    // Single pass over a Reader that feeds fields straight into a CountryTable.Builder,
+    // without holding the file, its lines or per-line arrays in memory. Quoted fields can
+    // contain commas, newlines and "" escaped quotes. Lines that are only whitespace are skipped.
+    static class CsvParser {
+        private final StringBuilder field = new StringBuilder();
+        private final List<String> headerFields = new ArrayList<>();
+        private CountryTable.Builder table;
+        private boolean inQuotes;
+        private boolean quoteInQuotes; // saw a quote inside a quoted field, the next char decides if it was escaped
+        private boolean skipLF;        // last record ended on \r, so a following \n belongs to it
+        private boolean started;       // current record has at least one char
+        private boolean blank = true;  // current record is only whitespace so far
+
+        CountryTable parse(Reader reader) throws IOException {
+            char[] buf = new char[8192];
+            int n;
+            while ((n = reader.read(buf)) != -1) {
+                for (int i = 0; i < n; i++) accept(buf[i]);
+            }
+            if (started) endRecord();
+            if (table == null) throw new IOException("CSV file is empty.");
+            return table.build();
+        }
+
+        private void accept(char c) {
+            if (skipLF) {
+                skipLF = false;
+                if (c == '\n') return;
+            }
+            if (quoteInQuotes) {
+                quoteInQuotes = false;
+                if (c == '"') {
+                    field.append('"');
+                    return;
+                }
+                inQuotes = false;
+            }
+
+            started = true;
+            if (c == '"') {
+                if (inQuotes) {
+                    quoteInQuotes = true;
+                } else {
+                    inQuotes = true;
+                }
+                blank = false;
+            } else if (inQuotes) {
+                field.append(c);
+                if (!Character.isWhitespace(c)) blank = false;
+            } else if (c == ',') {
+                endField();
+                blank = false;
+            } else if (c == '\n' || c == '\r') {
+                skipLF = c == '\r';
+                endRecord();
+            } else {
+                field.append(c);
+                if (!Character.isWhitespace(c)) blank = false;
+            }
+        }
+
+        private void endField() {
+            if (table == null) {
+                headerFields.add(field.toString());
+            } else {
+                table.add(field.toString());
+            }
+            field.setLength(0);
+        }
+
+        // The first record is always the header, even if it is blank
+        private void endRecord() {
+            if (table == null) {
+                endField();
+                table = new CountryTable.Builder(headerFields.toArray(new String[0]));
+            } else if (!blank) {
+                endField();
+                table.endRow();
             }
+            field.setLength(0);
+            started = false;
+            blank = true;
         }
-        fields.add(field.toString());
-        return fields.toArray(new String[0]);
     }
 }
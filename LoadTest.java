@@ -0,0 +1,320 @@
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+// End-to-end load test for CountrySearchServer. Starts the server as a child process on a
+// SyntheticFactbook CSV, then replays a mix of requests at a fixed arrival rate (open loop):
+// request i is due at start + i / rate whether or not earlier ones have finished. Latency is
+// measured from that due time, so time spent queued behind a slow response is counted instead
+// of hidden (coordinated omission). The plain service time is reported next to it.
+//
+//   javac -encoding UTF-8 CountrySearchServer.java SyntheticFactbook.java LoadTest.java
+//   java LoadTest [requests/s] [seconds] [rows]
+//
+// Options (system properties):
+//   -Dload.mix=exact=40,partial=25,miss=10,api=20,home=5   request classes and their weights
+//   -Dload.zipf=1.0        skew of the Zipfian pick within each class (0 = uniform)
+//   -Dload.connections=32  concurrent client connections
+//   -Dload.warmup=5        seconds of traffic before measuring
+//   -Dload.drain=60        seconds to wait for outstanding requests after the last one is sent
+//   -Dload.port=18090      port for the child server
+//   -Dload.env=HTTP_EXECUTOR=virtual,RESULT_CACHE_MB=0     extra server environment
+//   -Dload.url=http://host:port   use a running server instead of starting one
+public class LoadTest {
+
+    static final String[] CLASSES = {"exact", "partial", "miss", "api", "home"};
+
+    // One planned request: which class it belongs to and what to fetch
+    static class Plan {
+        final int type;
+        final URI uri;
+
+        Plan(int type, URI uri) {
+            this.type = type;
+            this.uri = uri;
+        }
+    }
+
+    // Outcome of one run, indexed by request number. A request is settled once done[i] is set, either
+    // by its worker or by the cutoff at the end of the run, whichever gets there first.
+    static class Results {
+        final int[] type;
+        final long[] due;
+        final long[] sent;
+        final int[] status;
+        final boolean[] timedOut;
+        final java.util.concurrent.atomic.AtomicLongArray done;
+
+        Results(int count) {
+            type = new int[count];
+            due = new long[count];
+            sent = new long[count];
+            status = new int[count];
+            timedOut = new boolean[count];
+            done = new java.util.concurrent.atomic.AtomicLongArray(count);
+        }
+
+        long latency(int i) {
+            return done.get(i) - due[i];
+        }
+
+        long service(int i) {
+            return done.get(i) - sent[i];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        double rate = args.length > 0 ? Double.parseDouble(args[0]) : 500;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 260;
+        String mix = System.getProperty("load.mix", "exact=40,partial=25,miss=10,api=20,home=5");
+        double skew = Double.parseDouble(System.getProperty("load.zipf", "1.0"));
+        int connections = Integer.getInteger("load.connections", 32);
+        int warmup = Integer.getInteger("load.warmup", 5);
+        int port = Integer.getInteger("load.port", 18090);
+        String target = System.getProperty("load.url");
+
+        Path dir = Files.createTempDirectory("natlas-load");
+        Path csv = dir.resolve("countries.csv");
+        Path log = dir.resolve("server.log");
+        Process server = null;
+        try {
+            if (target == null) {
+                SyntheticFactbook.write(csv, rows, 300, 42);
+                server = startServer(port, csv, log, System.getProperty("load.env", ""));
+                target = "http://127.0.0.1:" + port;
+            }
+
+            HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+            awaitReady(client, target, server, log);
+
+            double[] weights = parseMix(mix);
+            List<List<URI>> targets = targets(target, SyntheticFactbook.names(rows, 42));
+            double[][] zipf = new double[CLASSES.length][];
+            for (int i = 0; i < CLASSES.length; i++) zipf[i] = zipfCdf(targets.get(i).size(), skew);
+
+            System.out.println("Target " + target + ": " + rate + " req/s for " + seconds + " s over " + connections
+                + " connections, mix " + mix + ", zipf " + skew);
+            if (warmup > 0) {
+                run(client, plan(new Random(7), (int) (rate * warmup), weights, targets, zipf), rate, connections);
+            }
+            Plan[] plans = plan(new Random(42), (int) (rate * seconds), weights, targets, zipf);
+            long start = System.nanoTime();
+            Results results = run(client, plans, rate, connections);
+            report(results, plans.length, (System.nanoTime() - start) / 1e9);
+        } finally {
+            if (server != null) {
+                server.destroy();
+                server.waitFor();
+            }
+            Files.deleteIfExists(log);
+            Files.deleteIfExists(csv.resolveSibling("countries.csv.snapshot"));
+            Files.deleteIfExists(csv);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static Process startServer(int port, Path csv, Path log, String extraEnv) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(
+            Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+            "-cp", System.getProperty("java.class.path"),
+            "CountrySearchServer");
+        Map<String, String> env = builder.environment();
+        env.put("PORT", String.valueOf(port));
+        env.put("CSV_PATH", csv.toString());
+        env.put("LOG_LEVEL", "WARN");
+        // One client address sending thousands of requests a second would otherwise just measure 429s
+        env.put("RATE_LIMIT_RPS", "0");
+        for (String pair : extraEnv.split(",")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) env.put(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+        }
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(log.toFile());
+        return builder.start();
+    }
+
+    private static void awaitReady(HttpClient client, String target, Process server, Path log) throws Exception {
+        HttpRequest probe = HttpRequest.newBuilder(URI.create(target + "/readyz")).timeout(Duration.ofSeconds(2)).build();
+        long deadline = System.nanoTime() + 60_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            if (server != null && !server.isAlive()) break;
+            try {
+                if (client.send(probe, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) return;
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(100);
+        }
+        if (server != null) System.err.print(Files.readString(log));
+        throw new IOException("Server at " + target + " did not become ready");
+    }
+
+    // "exact=40,partial=25" -> weights by class, normalised to a cumulative distribution
+    private static double[] parseMix(String mix) {
+        double[] weights = new double[CLASSES.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split("=");
+            int type = Arrays.asList(CLASSES).indexOf(kv[0].trim());
+            if (type < 0 || kv.length != 2) throw new IllegalArgumentException("Bad mix entry: " + part);
+            weights[type] = Double.parseDouble(kv[1].trim());
+        }
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            weights[i] = total;
+        }
+        if (total <= 0) throw new IllegalArgumentException("Mix has no weight: " + mix);
+        for (int i = 0; i < weights.length; i++) weights[i] /= total;
+        return weights;
+    }
+
+    // Candidate URLs per class, most popular first since the Zipfian pick favours low ranks
+    private static List<List<URI>> targets(String base, List<String> names) {
+        List<List<URI>> targets = new ArrayList<>();
+        for (int i = 0; i < CLASSES.length; i++) targets.add(new ArrayList<>());
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            targets.get(0).add(URI.create(base + "/search?q=" + encode(name)));
+            String prefix = name.substring(0, Math.min(name.length(), 3 + i % 3)).toLowerCase(Locale.ROOT);
+            targets.get(1).add(URI.create(base + "/search?q=" + encode(prefix)));
+            targets.get(2).add(URI.create(base + "/search?q=" + encode("qzx" + Integer.toString(i * 7919, 36))));
+            targets.get(3).add(URI.create(base + "/api/search?q=" + encode(i % 2 == 0 ? name : prefix)));
+        }
+        targets.get(4).add(URI.create(base + "/"));
+        return targets;
+    }
+
+    private static String encode(String value) {
+        return java.net.URLEncoder.encode(value, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    // Cumulative probabilities for ranks 1..n with P(k) proportional to 1 / k^skew
+    private static double[] zipfCdf(int n, double skew) {
+        double[] cdf = new double[n];
+        double total = 0;
+        for (int k = 0; k < n; k++) {
+            total += 1 / Math.pow(k + 1, skew);
+            cdf[k] = total;
+        }
+        for (int k = 0; k < n; k++) cdf[k] /= total;
+        return cdf;
+    }
+
+    private static int pick(double[] cdf, double u) {
+        int i = Arrays.binarySearch(cdf, u);
+        return Math.min(cdf.length - 1, i >= 0 ? i : -i - 1);
+    }
+
+    // The whole schedule is drawn up front so the dispatcher only has to keep time
+    private static Plan[] plan(Random random, int count, double[] weights, List<List<URI>> targets, double[][] zipf) {
+        Plan[] plans = new Plan[count];
+        for (int i = 0; i < count; i++) {
+            int type = pick(weights, random.nextDouble());
+            plans[i] = new Plan(type, targets.get(type).get(pick(zipf[type], random.nextDouble())));
+        }
+        return plans;
+    }
+
+    private static Results run(HttpClient client, Plan[] plans, double rate, int connections) throws InterruptedException {
+        long drainSeconds = Long.getLong("load.drain", 60);
+        Results results = new Results(plans.length);
+        java.util.concurrent.ExecutorService workers = java.util.concurrent.Executors.newFixedThreadPool(connections);
+        long intervalNanos = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        for (int i = 0; i < plans.length; i++) {
+            long due = start + i * intervalNanos;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            int index = i;
+            results.type[index] = plans[index].type;
+            results.due[index] = due;
+            // The worker pool's queue holds requests that are due but have no free connection yet
+            workers.execute(() -> send(client, plans[index], index, results));
+        }
+        workers.shutdown();
+        if (!workers.awaitTermination(drainSeconds, java.util.concurrent.TimeUnit.SECONDS)) {
+            // Whatever is still running or queued counts at the cutoff latency rather than dropping
+            // out of the percentiles, which would hide exactly the slowest requests
+            long cutoff = System.nanoTime();
+            for (int i = 0; i < plans.length; i++) {
+                if (results.done.compareAndSet(i, 0, cutoff)) results.timedOut[i] = true;
+            }
+            workers.shutdownNow();
+        }
+        return results;
+    }
+
+    private static void send(HttpClient client, Plan plan, int index, Results results) {
+        HttpRequest request = HttpRequest.newBuilder(plan.uri)
+            .timeout(Duration.ofSeconds(30))
+            .header("Accept-Encoding", "gzip")
+            .build();
+        results.sent[index] = System.nanoTime();
+        int status;
+        try {
+            status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (IOException e) {
+            status = -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = -1;
+        }
+        results.status[index] = status;
+        results.done.compareAndSet(index, 0, System.nanoTime());
+    }
+
+    private static void report(Results results, int count, double elapsed) {
+        System.out.printf("%d requests in %.1f s (%.0f req/s achieved)%n", count, elapsed, count / elapsed);
+        System.out.printf("%-10s %9s %7s %8s %10s %10s %10s %10s%n", "Class", "requests", "errors", "timeouts", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (int type = 0; type < CLASSES.length; type++) {
+            row(CLASSES[type], results, count, type, false);
+        }
+        row("all", results, count, -1, false);
+        // Without the wait for a free connection: what a closed-loop tool would have reported
+        row("service", results, count, -1, true);
+        int timeouts = 0;
+        for (int i = 0; i < count; i++) {
+            if (results.timedOut[i]) timeouts++;
+        }
+        if (timeouts > 0) {
+            System.out.println(timeouts + " requests had not finished when the run was cut off; they are counted at the cutoff, so their latency is a lower bound");
+        }
+    }
+
+    private static void row(String label, Results results, int count, int type, boolean service) {
+        long[] values = new long[count];
+        int n = 0;
+        int errors = 0;
+        int timeouts = 0;
+        for (int i = 0; i < count; i++) {
+            if (type >= 0 && results.type[i] != type) continue;
+            // Requests that never left the queue (or only did after the cutoff) have no service time
+            if (service && (results.sent[i] == 0 || results.sent[i] > results.done.get(i))) continue;
+            if (results.timedOut[i]) {
+                timeouts++;
+            } else if (results.status[i] != 200 && results.status[i] != 304) {
+                errors++;
+            }
+            values[n++] = service ? results.service(i) : results.latency(i);
+        }
+        if (n == 0) return;
+        Arrays.sort(values, 0, n);
+        System.out.printf("%-10s %9d %7d %8d %10.2f %10.2f %10.2f %10.2f%n", label, n, errors, timeouts,
+            percentile(values, n, 0.50), percentile(values, n, 0.99), percentile(values, n, 0.999), values[n - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, int n, double p) {
+        if (n == 0) return 0;
+        return sorted[Math.min(n - 1, (int) (n * p))] / 1e6;
+    }
+}
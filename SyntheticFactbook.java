@@ -0,0 +1,152 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Writes a fake countries.csv with the same shape as the real factbook export: the same key
+// columns, a few hundred filler columns, quoted values with commas, "" quotes and line breaks,
+// lots of repeated "none"/"NA" values and a long economic overview. Same seed, same file.
+//
+//   java SyntheticFactbook <out.csv> [rows] [extraColumns] [seed]
+public class SyntheticFactbook {
+
+    static final String[] KEY_COLUMNS = {
+        "Country",
+        "Government: Country name: conventional long form",
+        "Geography: Location",
+        "Geography: Area: total ",
+        "People and Society: Population: total",
+        "Government: Capital: name",
+        "Government: Government type",
+        "People and Society: Languages",
+        "People and Society: Religions",
+        "People and Society: Nationality: noun",
+        "People and Society: Life expectancy at birth: total population",
+        "People and Society: Median age: total",
+        "Geography: Climate",
+        "Geography: Natural resources",
+        "Economy: Economic overview",
+        "Economy: Real GDP per capita: Real GDP per capita 2024",
+        "Economy: Industries",
+        "Economy: Exports - partners",
+        "Economy: Imports - partners",
+        "Government: Independence",
+        "Government: National anthem(s): title",
+        "Government: Flag description",
+        "Military and Security: Military expenditures",
+        "Environment: Environment - current issues"
+    };
+
+    // Real names first so benchmarks and load tests can use familiar queries
+    static final String[] REAL_NAMES = {
+        "United States", "Germany", "Japan", "Brazil", "France", "United Kingdom", "United Arab Emirates",
+        "Philippines", "Italy", "Canada", "Mexico", "India", "China", "Niger", "Nigeria", "Spain",
+        "Australia", "Argentina", "Egypt", "Kenya", "Norway", "Sweden", "Poland", "Turkey", "Vietnam"
+    };
+
+    private static final String[] SYLLABLES = {
+        "ka", "lo", "mi", "ra", "tu", "ven", "dor", "sta", "lia", "nia", "ber", "gal", "ton", "mar", "qu", "zel"
+    };
+
+    private static final String[] SECTIONS = {
+        "Introduction", "Geography", "People and Society", "Environment", "Government", "Economy",
+        "Energy", "Communications", "Transportation", "Military and Security", "Transnational Issues"
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java SyntheticFactbook <out.csv> [rows] [extraColumns] [seed]");
+            return;
+        }
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 260;
+        int extra = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        write(Path.of(args[0]), rows, extra, seed);
+        System.out.println("Wrote " + rows + " rows to " + args[0]);
+    }
+
+    static List<String> names(int rows, long seed) {
+        Random random = new Random(seed);
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        for (int i = 0; i < REAL_NAMES.length && names.size() < rows; i++) names.add(REAL_NAMES[i]);
+        while (names.size() < rows) {
+            StringBuilder name = new StringBuilder();
+            int parts = 2 + random.nextInt(3);
+            for (int i = 0; i < parts; i++) name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+            names.add(name.toString());
+        }
+        return new ArrayList<>(names);
+    }
+
+    static void write(Path out, int rows, int extraColumns, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<String> names = names(rows, seed);
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(out), StandardCharsets.UTF_8))) {
+            List<String> header = new ArrayList<>(Arrays.asList(KEY_COLUMNS));
+            for (int i = 0; i < extraColumns; i++) {
+                header.add(SECTIONS[i % SECTIONS.length] + ": Field " + i + ": total");
+            }
+            writeRow(w, header);
+
+            for (int row = 0; row < rows; row++) {
+                String name = names.get(row);
+                List<String> values = new ArrayList<>(header.size());
+                values.add(name);
+                values.add(row % 3 == 0 ? "none" : "Republic of " + name);
+                values.add("Somewhere between the \"North\" and South seas, bordering " + names.get(random.nextInt(rows)));
+                values.add(String.format(Locale.ROOT, "%,d sq km", 100 + random.nextInt(9_000_000)));
+                values.add(String.format(Locale.ROOT, "%,d (2024 est.)", 1_000 + (long) (random.nextDouble() * 1_400_000_000L)));
+                values.add(name + " City");
+                values.add(random.nextBoolean() ? "presidential republic" : "parliamentary democracy");
+                values.add("English (official) 60%, Spanish 20%, other <5%");
+                values.add(random.nextBoolean() ? "NA" : "Christian 70%, Muslim 20%, none 10%");
+                values.add("none");
+                values.add(String.format(Locale.ROOT, "%.1f years", 50 + random.nextDouble() * 35));
+                values.add(String.format(Locale.ROOT, "%.1f years", 15 + random.nextDouble() * 35));
+                values.add("temperate\nwith wet winters and dry summers");
+                values.add("none");
+                values.add(overview(random, name));
+                values.add(String.format(Locale.ROOT, "$%,d (2024 est.)", 500 + random.nextInt(120_000)));
+                values.add("textiles, food processing, machinery");
+                values.add(names.get(random.nextInt(rows)) + " 30%, " + names.get(random.nextInt(rows)) + " 12% (2023)");
+                values.add(names.get(random.nextInt(rows)) + " 25% (2023)");
+                values.add((1700 + random.nextInt(300)) + " (from some empire)");
+                values.add("\"Anthem of " + name + "\"");
+                values.add("three equal vertical bands & a star");
+                values.add(String.format(Locale.ROOT, "%.1f%% of GDP (2024 est.)", random.nextDouble() * 5));
+                values.add("deforestation; water pollution");
+                for (int i = 0; i < extraColumns; i++) {
+                    int pick = random.nextInt(10);
+                    values.add(pick < 3 ? "none" : pick < 5 ? "NA" : pick < 7 ? "" : "value " + random.nextInt(1000) + ", note " + random.nextInt(10));
+                }
+                writeRow(w, values);
+            }
+        }
+    }
+
+    private static String overview(Random random, String name) {
+        StringBuilder text = new StringBuilder();
+        int sentences = 20 + random.nextInt(30);
+        for (int i = 0; i < sentences; i++) {
+            text.append(name).append("'s economy grew ").append(random.nextInt(9)).append('.').append(random.nextInt(10))
+                .append("% as exports, tourism and services expanded; ");
+        }
+        return text.toString().trim();
+    }
+
+    private static void writeRow(Writer w, List<String> values) throws IOException {
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) w.write(',');
+            String value = values.get(i);
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0) {
+                w.write('"');
+                w.write(value.replace("\"", "\"\""));
+                w.write('"');
+            } else {
+                w.write(value);
+            }
+        }
+        w.write('\n');
+    }
+}